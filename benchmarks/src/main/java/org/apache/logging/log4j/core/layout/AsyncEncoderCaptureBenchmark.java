@@ -0,0 +1,66 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What handing an event to the encoder threads costs the logging thread: {@code capture} takes the memento
+ * {@link AsyncEncoder} queues for a reused {@link MutableLogEvent}, {@code encode} serializes the same event in place,
+ * as the layout does without encoder threads.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AsyncEncoderCaptureBenchmark {
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.PARAMETERIZED, BenchmarkEvents.LARGE_CONTEXT,
+            BenchmarkEvents.FIXTURE })
+    public String event;
+
+    private MutableLogEvent mutable;
+    private ExtendedJsonLayout layout;
+    private AsyncEncoder encoder;
+    private ByteBufferDestination destination;
+
+    @Setup
+    public void setUp() {
+        mutable = new MutableLogEvent();
+        mutable.initFrom(BenchmarkEvents.create(event));
+        // @formatter:off
+        layout = ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        encoder = new AsyncEncoder(layout, false, 1, 1, null, 0);
+        destination = new DiscardingByteBufferDestination();
+    }
+
+    @Benchmark
+    public LogEvent capture() {
+        return encoder.capture(mutable);
+    }
+
+    @Benchmark
+    public ByteBufferDestination encode() {
+        layout.encode(mutable, destination);
+        return destination;
+    }
+}
@@ -0,0 +1,86 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.ReusableMessageFactory;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.spi.DefaultThreadContextStack;
+import org.apache.logging.log4j.util.StringMap;
+
+/**
+ * The events the benchmarks serialize, all derived from {@link LogEventFixtures#createLogEvent()} so that they keep
+ * its logger, thread and source location.
+ */
+final class BenchmarkEvents {
+
+    static final String PLAIN = "plain";
+    static final String PARAMETERIZED = "parameterized";
+    static final String LARGE_CONTEXT = "largeContext";
+    static final String DEEP_EXCEPTION = "deepException";
+    static final String FIXTURE = "fixture";
+
+    private static final int LARGE_CONTEXT_SIZE = 100;
+    private static final int EXCEPTION_CAUSES = 8;
+    private static final int EXCEPTION_DEPTH = 20;
+
+    private BenchmarkEvents() {
+    }
+
+    /**
+     * @param name one of the constants in this class
+     * @return the event to serialize
+     */
+    static LogEvent create(final String name) {
+        final Log4jLogEvent fixture = LogEventFixtures.createLogEvent();
+        if (FIXTURE.equals(name)) {
+            return fixture;
+        }
+        // a typical event: no marker, exception or NDC, two MDC entries
+        final Log4jLogEvent.Builder builder = new Log4jLogEvent.Builder(fixture)
+                .setMarker(null)
+                .setThrown(null)
+                .setThrownProxy(null)
+                .setContextStack(new DefaultThreadContextStack(false))
+                .setMessage(new SimpleMessage("Request handled"));
+        switch (name) {
+        case PLAIN:
+            break;
+        case PARAMETERIZED:
+            // formats on every call, like the messages of a garbage-free logger
+            builder.setMessage(ReusableMessageFactory.INSTANCE.newMessage("Request {} for {} handled in {} ms",
+                    "c0ffee42", "/api/orders", 17));
+            break;
+        case LARGE_CONTEXT:
+            final StringMap contextData = ContextDataFactory.createContextData(LARGE_CONTEXT_SIZE);
+            for (int i = 0; i < LARGE_CONTEXT_SIZE; i++) {
+                contextData.putValue("context.key" + i, "value-" + i);
+            }
+            builder.setContextData(contextData);
+            break;
+        case DEEP_EXCEPTION:
+            builder.setThrown(nestedException(EXCEPTION_CAUSES));
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown event " + name);
+        }
+        return builder.build();
+    }
+
+    private static Throwable nestedException(final int causes) {
+        Throwable thrown = null;
+        for (int i = 0; i < causes; i++) {
+            thrown = throwAt(EXCEPTION_DEPTH, "cause " + i, thrown);
+        }
+        return thrown;
+    }
+
+    private static Throwable throwAt(final int depth, final String message, final Throwable cause) {
+        if (depth > 0) {
+            return throwAt(depth - 1, message, cause);
+        }
+        return new IOException(message, cause);
+    }
+}
@@ -0,0 +1,33 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link ByteBufferDestination} which throws away everything written to it, so the benchmarks measure the layout
+ * rather than I/O.
+ */
+final class DiscardingByteBufferDestination implements ByteBufferDestination {
+
+    private final ByteBuffer buffer = ByteBuffer.wrap(new byte[64 * 1024]);
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return buffer;
+    }
+
+    @Override
+    public ByteBuffer drain(final ByteBuffer buf) {
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public void writeBytes(final ByteBuffer data) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+    }
+
+    @Override
+    public void writeBytes(final byte[] data, final int offset, final int length) {
+        ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+    }
+}
@@ -0,0 +1,75 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes a batch of events per operation, one {@link ExtendedJsonLayout#encode(LogEvent, ByteBufferDestination)}
+ * call at a time and with a single
+ * {@link ExtendedJsonLayout#encodeBatch(List, ByteBufferDestination)} call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtendedJsonLayoutBatchBenchmark {
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.LARGE_CONTEXT })
+    public String event;
+
+    @Param({ "16", "256" })
+    public int batchSize;
+
+    @Param({ "true", "false" })
+    public boolean compact;
+
+    private List<LogEvent> events;
+    private ExtendedJsonLayout layout;
+    private ByteBufferDestination destination;
+
+    @Setup
+    public void setUp() {
+        events = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            events.add(BenchmarkEvents.create(event));
+        }
+        // @formatter:off
+        layout = ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setCompact(compact)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        destination = new DiscardingByteBufferDestination();
+    }
+
+    @Benchmark
+    public ByteBufferDestination encodeEach() {
+        for (int i = 0; i < events.size(); i++) {
+            layout.encode(events.get(i), destination);
+        }
+        return destination;
+    }
+
+    @Benchmark
+    public ByteBufferDestination encodeBatch() {
+        layout.encodeBatch(events, destination);
+        return destination;
+    }
+}
@@ -0,0 +1,147 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializes one event per operation with {@link ExtendedJsonLayout}, both to a {@code String} and through
+ * {@link ExtendedJsonLayout#encode(LogEvent, ByteBufferDestination)}. {@link JsonLayoutBenchmark} runs the same
+ * events through log4j's stock {@link JsonLayout} for comparison.
+ * <p>
+ * Run with {@code -prof gc} to see the bytes allocated per operation ({@code gc.alloc.rate.norm}).
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtendedJsonLayoutBenchmark {
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.PARAMETERIZED, BenchmarkEvents.LARGE_CONTEXT,
+            BenchmarkEvents.DEEP_EXCEPTION, BenchmarkEvents.FIXTURE })
+    public String event;
+
+    @Param({ "false", "true" })
+    public boolean locationInfo;
+
+    @Param({ "true", "false" })
+    public boolean compact;
+
+    /**
+     * none: no mixed fields; static: the default hostname adapter; map: an {@link ExtendedJson} map read on every
+     * event; event: an {@link EventExtendedJson} writing fields from the event.
+     */
+    @Param({ "none", "static", "map", "event" })
+    public String mixedFields;
+
+    private LogEvent logEvent;
+    private ExtendedJsonLayout layout;
+    private ByteBufferDestination destination;
+
+    @Setup
+    public void setUp() {
+        logEvent = BenchmarkEvents.create(event);
+        // @formatter:off
+        layout = ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(true)
+                .setCompact(compact)
+                .setJsonAdapter(adapterClass(mixedFields).getName())
+                .build();
+        // @formatter:on
+        destination = new DiscardingByteBufferDestination();
+    }
+
+    private static Class<?> adapterClass(final String mixedFields) {
+        switch (mixedFields) {
+        case "none":
+            return NoFields.class;
+        case "static":
+            return ExtendedJsonAdapter.class;
+        case "map":
+            return MapFields.class;
+        case "event":
+            return EventFields.class;
+        default:
+            throw new IllegalArgumentException("Unknown mixed fields " + mixedFields);
+        }
+    }
+
+    @Benchmark
+    public String toSerializable() {
+        return layout.toSerializable(logEvent);
+    }
+
+    @Benchmark
+    public ByteBufferDestination encode() {
+        layout.encode(logEvent, destination);
+        return destination;
+    }
+
+    public static class NoFields implements EventExtendedJson {
+
+        @Override
+        public void registerFields(final ExtendedJsonFields fields) {
+            // none
+        }
+
+        @Override
+        public void writeFields(final LogEvent event, final ExtendedJsonFieldWriter writer) {
+            // none
+        }
+    }
+
+    public static class MapFields implements ExtendedJson {
+
+        private final Map<String, Object> fields = new HashMap<>();
+
+        public MapFields() {
+            fields.put("hostname", "bench-host-01");
+            fields.put("application", "orders");
+            fields.put("instance", 3);
+        }
+
+        @Override
+        public Map<String, Object> getMixedFields() {
+            return fields;
+        }
+    }
+
+    public static class EventFields implements EventExtendedJson {
+
+        private ExtendedJsonField hostname;
+        private ExtendedJsonField application;
+        private ExtendedJsonField error;
+
+        @Override
+        public void registerFields(final ExtendedJsonFields fields) {
+            hostname = fields.register("hostname");
+            application = fields.register("application");
+            error = fields.register("error");
+        }
+
+        @Override
+        public void writeFields(final LogEvent event, final ExtendedJsonFieldWriter writer) throws IOException {
+            writer.writeString(hostname, "bench-host-01");
+            writer.writeString(application, "orders");
+            writer.writeBoolean(error, event.getThrown() != null);
+        }
+    }
+}
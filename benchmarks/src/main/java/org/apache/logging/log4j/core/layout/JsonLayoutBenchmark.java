@@ -0,0 +1,67 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The baseline for {@link ExtendedJsonLayoutBenchmark}: the same events and options with log4j's stock
+ * {@link JsonLayout}, which has no mixed fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonLayoutBenchmark {
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.PARAMETERIZED, BenchmarkEvents.LARGE_CONTEXT,
+            BenchmarkEvents.DEEP_EXCEPTION, BenchmarkEvents.FIXTURE })
+    public String event;
+
+    @Param({ "false", "true" })
+    public boolean locationInfo;
+
+    @Param({ "true", "false" })
+    public boolean compact;
+
+    private LogEvent logEvent;
+    private JsonLayout layout;
+    private ByteBufferDestination destination;
+
+    @Setup
+    public void setUp() {
+        logEvent = BenchmarkEvents.create(event);
+        // @formatter:off
+        layout = JsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(true)
+                .setCompact(compact)
+                .build();
+        // @formatter:on
+        destination = new DiscardingByteBufferDestination();
+    }
+
+    @Benchmark
+    public String toSerializable() {
+        return layout.toSerializable(logEvent);
+    }
+
+    @Benchmark
+    public ByteBufferDestination encode() {
+        layout.encode(logEvent, destination);
+        return destination;
+    }
+}
@@ -0,0 +1,91 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractOutputStreamAppender;
+import org.apache.logging.log4j.core.appender.MappedFileAppender;
+import org.apache.logging.log4j.core.appender.RandomAccessFileAppender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Appends one event per operation to a file through the {@link MappedFileAppender} and through log4j's
+ * {@link RandomAccessFileAppender}, both with the same {@link ExtendedJsonLayout}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappedFileAppenderBenchmark {
+
+    @Param({ "MappedFile", "RandomAccessFile" })
+    public String appender;
+
+    @Param({ BenchmarkEvents.PLAIN, BenchmarkEvents.LARGE_CONTEXT })
+    public String event;
+
+    @Param({ "true", "false" })
+    public boolean immediateFlush;
+
+    private LogEvent logEvent;
+    private File file;
+    private AbstractOutputStreamAppender<?> fileAppender;
+
+    @Setup
+    public void setUp() throws IOException {
+        logEvent = BenchmarkEvents.create(event);
+        file = File.createTempFile("extended-jsonlayout-", ".json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        if ("MappedFile".equals(appender)) {
+            fileAppender = MappedFileAppender.newBuilder()
+                    .withName(appender)
+                    .setFileName(file.getPath())
+                    .setAppend(false)
+                    .withImmediateFlush(immediateFlush)
+                    .withLayout(layout)
+                    .build();
+        } else {
+            fileAppender = RandomAccessFileAppender.newBuilder()
+                    .withName(appender)
+                    .setFileName(file.getPath())
+                    .setAppend(false)
+                    .withImmediateFlush(immediateFlush)
+                    .withLayout(layout)
+                    .build();
+        }
+        // @formatter:on
+        fileAppender.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        fileAppender.stop();
+        file.delete();
+    }
+
+    @Benchmark
+    public AbstractOutputStreamAppender<?> append() {
+        fileAppender.append(logEvent);
+        return fileAppender;
+    }
+}
@@ -0,0 +1,161 @@
+package org.apache.logging.log4j.core.appender;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.config.plugins.validation.constraints.Required;
+import org.apache.logging.log4j.core.layout.ExtendedJsonLayout;
+
+/**
+ * Writes events into a memory-mapped file through a {@link MappedFileManager}, with no system call per event, mapping
+ * the file one region at a time. Meant for {@code ExtendedJsonLayout}, whose {@code encode} copies each event into the
+ * mapping with a single write:
+ * <pre>
+ * &lt;MappedFile name="json" fileName="logs/app.json" regionLength="33554432" forceIntervalMillis="1000"&gt;
+ *     &lt;ExtendedJsonLayout compact="true" eventEol="true"/&gt;
+ * &lt;/MappedFile&gt;
+ * </pre>
+ * <p>
+ * Unlike log4j's {@code MemoryMappedFileAppender}, flushing does not force the mapping to disk on every event; see
+ * {@link MappedFileManager} for {@code forceIntervalMillis}. The layout's header is written into the mapping, and the
+ * file is truncated to what was written when the appender stops. An {@code ExtendedJsonLayout} is stopped first, so
+ * that what its encoder threads still have queued is written before the footer.
+ * </p>
+ */
+@Plugin(name = "MappedFile", category = Core.CATEGORY_NAME, elementType = Appender.ELEMENT_TYPE, printObject = true)
+public final class MappedFileAppender extends AbstractOutputStreamAppender<MappedFileManager> {
+
+    private static final int MIN_REGION_LENGTH = 4096;
+
+    private static final int MAX_REGION_LENGTH = 1 << 30;
+
+    private final String fileName;
+
+    private MappedFileAppender(final String name, final Layout<? extends Serializable> layout, final Filter filter,
+            final MappedFileManager manager, final String fileName, final boolean ignoreExceptions,
+            final boolean immediateFlush) {
+        super(name, layout, filter, ignoreExceptions, immediateFlush, manager);
+        this.fileName = fileName;
+    }
+
+    @PluginBuilderFactory
+    public static <B extends Builder<B>> B newBuilder() {
+        return new Builder<B>().asBuilder();
+    }
+
+    @Override
+    public boolean stop(final long timeout, final TimeUnit timeUnit) {
+        setStopping();
+        final Layout<? extends Serializable> layout = getLayout();
+        if (layout instanceof ExtendedJsonLayout) {
+            // before the manager takes its lock to write the footer
+            ((ExtendedJsonLayout) layout).stop(timeout, timeUnit);
+        }
+        super.stop(timeout, timeUnit, false);
+        setStopped();
+        return true;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public int getRegionLength() {
+        return getManager().getRegionLength();
+    }
+
+    public static class Builder<B extends Builder<B>> extends AbstractOutputStreamAppender.Builder<B>
+            implements org.apache.logging.log4j.core.util.Builder<MappedFileAppender> {
+
+        @PluginBuilderAttribute
+        @Required
+        private String fileName;
+
+        @PluginBuilderAttribute
+        private boolean append = true;
+
+        @PluginBuilderAttribute
+        private int regionLength = MappedFileManager.DEFAULT_REGION_LENGTH;
+
+        @PluginBuilderAttribute
+        private long forceIntervalMillis = MappedFileManager.DEFAULT_FORCE_INTERVAL_MILLIS;
+
+        @Override
+        public MappedFileAppender build() {
+            final String name = getName();
+            if (name == null) {
+                LOGGER.error("No name provided for MappedFileAppender");
+                return null;
+            }
+            final int length = Math.min(Math.max(regionLength, MIN_REGION_LENGTH), MAX_REGION_LENGTH);
+            if (length != regionLength) {
+                LOGGER.warn("MappedFileAppender[{}] regionLength={} is out of range, using {}", name, regionLength,
+                        length);
+            }
+            final Layout<? extends Serializable> layout = getOrCreateLayout();
+            final MappedFileManager manager = MappedFileManager.getFileManager(fileName, append, length,
+                    forceIntervalMillis, layout);
+            if (manager == null) {
+                return null;
+            }
+            return new MappedFileAppender(name, layout, getFilter(), manager, fileName, isIgnoreExceptions(),
+                    isImmediateFlush());
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public boolean isAppend() {
+            return append;
+        }
+
+        public int getRegionLength() {
+            return regionLength;
+        }
+
+        public long getForceIntervalMillis() {
+            return forceIntervalMillis;
+        }
+
+        public B setFileName(final String fileName) {
+            this.fileName = fileName;
+            return asBuilder();
+        }
+
+        /**
+         * @param append whether to write after the file's contents, defaults to true
+         * @return this builder
+         */
+        public B setAppend(final boolean append) {
+            this.append = append;
+            return asBuilder();
+        }
+
+        /**
+         * @param regionLength how many bytes are mapped at a time, defaults to 32 MB
+         * @return this builder
+         */
+        public B setRegionLength(final int regionLength) {
+            this.regionLength = regionLength;
+            return asBuilder();
+        }
+
+        /**
+         * @param forceIntervalMillis how often the mapping is forced to disk if written to, defaults to 1000; 0 forces
+         * on every flush, a negative interval only at region boundaries and when the appender stops
+         * @return this builder
+         */
+        public B setForceIntervalMillis(final long forceIntervalMillis) {
+            this.forceIntervalMillis = forceIntervalMillis;
+            return asBuilder();
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.apache.logging.log4j.core.appender;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.core.util.NullOutputStream;
+
+/**
+ * Writes a file through a memory-mapped region, for the {@link MappedFileAppender}. Layouts encode straight into the
+ * mapping, so writing an event makes no system call; when a region is full, the next one is mapped after it.
+ * <p>
+ * The written bytes are in the page cache as soon as they are copied, visible to any reader of the file, and the
+ * operating system writes them back on its own. {@code forceIntervalMillis} bounds how much a machine crash may lose:
+ * a daemon thread forces the mapping to disk that often if anything was written. With 0 the mapping is forced whenever
+ * the appender flushes, which is after every event with {@code immediateFlush}; with a negative interval it is only
+ * forced at region boundaries and on close. On close the file is truncated to the bytes written, so the unused end of
+ * the last region is not left as zeros.
+ * </p>
+ * <p>
+ * A file that was not closed, after a crash for instance, still ends with the zeros of its last region. Appending to
+ * it starts after its last byte that is not zero, and the zeros are cut off. Output that may legitimately end with
+ * zero bytes, such as some binary formats, should not be appended to.
+ * </p>
+ */
+public class MappedFileManager extends OutputStreamManager {
+
+    static final int DEFAULT_REGION_LENGTH = 32 * 1024 * 1024;
+
+    static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * How long closing waits for a force that is under way on the force thread.
+     */
+    private static final long CLOSE_FORCE_WAIT_MILLIS = 30000;
+
+    private static final int SCAN_CHUNK_LENGTH = 64 * 1024;
+
+    private static final Factory FACTORY = new Factory();
+
+    private final RandomAccessFile file;
+    private final int regionLength;
+    private final long forceIntervalMillis;
+    private final ScheduledExecutorService forcer;
+    private MappedByteBuffer mappedBuffer;
+    private long mappingOffset;
+    private MappedByteBuffer forcedBuffer;
+    private int forcedPosition;
+    private MappedByteBuffer forcing;
+
+    protected MappedFileManager(final RandomAccessFile file, final String fileName, final long position,
+            final int regionLength, final long forceIntervalMillis, final Layout<? extends Serializable> layout,
+            final boolean writeHeader) throws IOException {
+        // nothing goes to the stream, the header is written into the mapping below
+        super(null, NullOutputStream.getInstance(), fileName, false, layout, false, ByteBuffer.wrap(new byte[0]));
+        this.file = file;
+        this.regionLength = regionLength;
+        this.forceIntervalMillis = forceIntervalMillis;
+        map(position);
+        if (writeHeader && layout != null) {
+            final byte[] header = layout.getHeader();
+            if (header != null) {
+                write(header, 0, header.length, false);
+            }
+        }
+        if (forceIntervalMillis > 0) {
+            this.forcer = Executors.newSingleThreadScheduledExecutor(
+                    Log4jThreadFactory.createDaemonThreadFactory("MappedFile-" + fileName));
+            this.forcer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    forceInBackground();
+                }
+            }, forceIntervalMillis, forceIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            this.forcer = null;
+        }
+    }
+
+    /**
+     * @param fileName the file to write
+     * @param append whether to write after the file's contents, or replace them
+     * @param regionLength how many bytes are mapped at a time
+     * @param forceIntervalMillis how often the mapping is forced to disk; 0 forces on every flush, a negative
+     * interval only at region boundaries and on close
+     * @param layout the appender's layout
+     * @return the manager, shared by the appenders of the same file
+     */
+    public static MappedFileManager getFileManager(final String fileName, final boolean append,
+            final int regionLength, final long forceIntervalMillis, final Layout<? extends Serializable> layout) {
+        return narrow(MappedFileManager.class, getManager(fileName,
+                new FactoryData(append, regionLength, forceIntervalMillis, layout), FACTORY));
+    }
+
+    /**
+     * @throws AppenderLoggingException if the manager is closed, as when a background writer of the layout comes late
+     */
+    @Override
+    protected synchronized void write(final byte[] bytes, final int offset, final int length,
+            final boolean immediateFlush) {
+        checkOpen();
+        int off = offset;
+        int len = length;
+        while (len > mappedBuffer.remaining()) {
+            final int chunk = mappedBuffer.remaining();
+            mappedBuffer.put(bytes, off, chunk);
+            off += chunk;
+            len -= chunk;
+            remap();
+        }
+        mappedBuffer.put(bytes, off, len);
+        if (immediateFlush) {
+            flush();
+        }
+    }
+
+    private void checkOpen() {
+        if (mappedBuffer == null) {
+            throw new AppenderLoggingException("Unable to write to " + getFileName() + ", which is closed");
+        }
+    }
+
+    /**
+     * Maps the next region, right after the bytes written to the current one.
+     */
+    private synchronized void remap() {
+        final long offset = mappingOffset + mappedBuffer.position();
+        release(mappedBuffer);
+        try {
+            map(offset);
+        } catch (final IOException e) {
+            // without a mapping nothing can be written; fail the event rather than corrupt the file
+            throw new AppenderLoggingException("Unable to map " + getFileName() + " at " + offset, e);
+        }
+    }
+
+    private void map(final long offset) throws IOException {
+        mappedBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, offset, regionLength);
+        mappingOffset = offset;
+        byteBuffer = mappedBuffer;
+        LOGGER.debug("Mapped {} bytes of {} at {}", regionLength, getFileName(), offset);
+    }
+
+    /**
+     * Forces the written part of a region that is done with, then unmaps it, unless the force thread is still
+     * forcing it, in which case the garbage collector unmaps it later.
+     */
+    private void release(final MappedByteBuffer buffer) {
+        if (forceIntervalMillis >= 0) {
+            buffer.force();
+        }
+        if (buffer == forcedBuffer) {
+            forcedBuffer = null;
+        }
+        if (buffer != forcing) {
+            unmap(buffer);
+        }
+    }
+
+    /**
+     * Forces the current region if it was written to since it was last forced. The force itself runs outside the
+     * manager's lock, so that logging threads are not held up by the disk.
+     */
+    private void forceInBackground() {
+        final MappedByteBuffer buffer;
+        synchronized (this) {
+            if (mappedBuffer == null || (mappedBuffer == forcedBuffer && mappedBuffer.position() == forcedPosition)) {
+                return;
+            }
+            buffer = mappedBuffer;
+            forcedBuffer = buffer;
+            forcedPosition = buffer.position();
+            forcing = buffer;
+        }
+        try {
+            buffer.force();
+        } catch (final RuntimeException e) {
+            logError("Unable to force " + getFileName(), e);
+        } finally {
+            synchronized (this) {
+                forcing = null;
+            }
+        }
+    }
+
+    /**
+     * Forces the mapping to disk if {@code forceIntervalMillis} is 0; the bytes are otherwise already where readers
+     * see them.
+     */
+    @Override
+    public synchronized void flush() {
+        if (forceIntervalMillis == 0 && mappedBuffer != null) {
+            mappedBuffer.force();
+        }
+    }
+
+    @Override
+    protected synchronized void flushBuffer(final ByteBuffer buf) {
+        // the buffer is the mapping
+    }
+
+    /**
+     * Stops the force thread and waits for a force it has under way, then forces and unmaps the last region and
+     * truncates the file to what was written. If the force thread does not finish in time, the mapping is left to
+     * the garbage collector and the file is not truncated, so the zeros are only cut off when the file is next
+     * appended to.
+     */
+    @Override
+    public boolean closeOutputStream() {
+        // not under the lock, which the force thread takes when it is done
+        final boolean forcerStopped = stopForcer();
+        synchronized (this) {
+            if (mappedBuffer == null) {
+                return true;
+            }
+            final long length = mappingOffset + mappedBuffer.position();
+            mappedBuffer.force();
+            if (forcerStopped) {
+                unmap(mappedBuffer);
+            }
+            mappedBuffer = null;
+            byteBuffer = ByteBuffer.wrap(new byte[0]);
+            try {
+                if (forcerStopped) {
+                    LOGGER.debug("Closing {}, truncating it to {} bytes", getFileName(), length);
+                    file.setLength(length);
+                } else {
+                    LOGGER.warn("Closing {} while a force is still under way, leaving it at {} bytes", getFileName(),
+                            file.length());
+                }
+                file.close();
+                return true;
+            } catch (final IOException e) {
+                logError("Unable to close " + getFileName(), e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return whether the force thread, if any, has finished
+     */
+    private boolean stopForcer() {
+        if (forcer == null) {
+            return true;
+        }
+        forcer.shutdown();
+        try {
+            return forcer.awaitTermination(CLOSE_FORCE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the length of the file without the zeros at its end
+     */
+    private static long dataLength(final RandomAccessFile file) throws IOException {
+        final byte[] chunk = new byte[SCAN_CHUNK_LENGTH];
+        long end = file.length();
+        while (end > 0) {
+            final int length = (int) Math.min(end, chunk.length);
+            file.seek(end - length);
+            file.readFully(chunk, 0, length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (chunk[i] != 0) {
+                    return end - length + i + 1;
+                }
+            }
+            end -= length;
+        }
+        return 0;
+    }
+
+    /**
+     * Unmaps the buffer right away where the JDK lets us, instead of leaving the mapping to the garbage collector.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (final Exception | LinkageError e) {
+            LOGGER.debug("Unable to unmap a region, leaving it to the garbage collector", e);
+        }
+    }
+
+    public String getFileName() {
+        return getName();
+    }
+
+    public int getRegionLength() {
+        return regionLength;
+    }
+
+    public long getForceIntervalMillis() {
+        return forceIntervalMillis;
+    }
+
+    /**
+     * Hands the mapping itself to layouts that encode into the destination's buffer, or an empty buffer once the
+     * manager is closed.
+     */
+    @Override
+    public synchronized ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * Called when the mapping is full.
+     *
+     * @throws AppenderLoggingException if the manager is closed
+     */
+    @Override
+    public synchronized ByteBuffer drain(final ByteBuffer buf) {
+        checkOpen();
+        remap();
+        return mappedBuffer;
+    }
+
+    private static class FactoryData {
+
+        final boolean append;
+        final int regionLength;
+        final long forceIntervalMillis;
+        final Layout<? extends Serializable> layout;
+
+        FactoryData(final boolean append, final int regionLength, final long forceIntervalMillis,
+                final Layout<? extends Serializable> layout) {
+            this.append = append;
+            this.regionLength = regionLength;
+            this.forceIntervalMillis = forceIntervalMillis;
+            this.layout = layout;
+        }
+    }
+
+    private static class Factory implements ManagerFactory<MappedFileManager, FactoryData> {
+
+        @Override
+        public MappedFileManager createManager(final String name, final FactoryData data) {
+            final File file = new File(name);
+            if (!data.append) {
+                file.delete();
+            }
+            final File parent = file.getParentFile();
+            if (parent != null && !parent.exists()) {
+                parent.mkdirs();
+            }
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(name, "rw");
+                final long position = data.append ? dataLength(raf) : 0;
+                if (data.append && position < raf.length()) {
+                    LOGGER.warn("Cutting {} zero bytes off the end of {}, which was not closed", raf.length() - position,
+                            name);
+                }
+                raf.setLength(position);
+                return new MappedFileManager(raf, name, position, data.regionLength, data.forceIntervalMillis,
+                        data.layout, position == 0);
+            } catch (final IOException e) {
+                LOGGER.error("MappedFileManager ({}) {}", name, e, e);
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (final IOException ignored) {
+                        // already failing
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
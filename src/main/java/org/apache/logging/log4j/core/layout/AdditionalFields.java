@@ -0,0 +1,175 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Configuration;
+import org.apache.logging.log4j.core.lookup.Interpolator;
+import org.apache.logging.log4j.core.lookup.StrSubstitutor;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Writes the {@code KeyValuePair} elements configured on an {@link ExtendedJsonLayout} as fields, after the fields of
+ * the layout's json adapter, if any.
+ * <p>
+ * The values are split when the layout is created. A value without lookups is a constant, and all constants are
+ * encoded together into JSON that is spliced into every event. Any other value is substituted for each event by the
+ * configuration's {@code StrSubstitutor}, as log4j's own layouts do, except a value that is a single {@code date}
+ * lookup, which formats the text around the milliseconds once per second, like the {@code timestamp} field.
+ * </p>
+ * <p>
+ * Lookups are resolved when the configuration is read, so a lookup that is to be resolved per event, like
+ * {@code $${date:HH:mm}} or {@code $${ctx:requestId}}, must be escaped in the configuration file.
+ * </p>
+ */
+final class AdditionalFields implements EventExtendedJson {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final String VARIABLE_PREFIX = "${";
+    private static final String DATE_PREFIX = "${date:";
+    private static final char VARIABLE_SUFFIX = '}';
+    private static final String DEFAULT_DELIMITER = ":-";
+
+    private final EventExtendedJson adapter;
+    private final StrSubstitutor substitutor;
+    private final Map<String, Object> constants = new LinkedHashMap<>();
+    private final List<DynamicField> dynamicFields = new ArrayList<>();
+    private final StaticMixedFields encodedConstants;
+    private final List<ConstantField> constantFields = new ArrayList<>();
+
+    private AdditionalFields(final StrSubstitutor substitutor, final KeyValuePair[] pairs,
+            final EventExtendedJson adapter, final ObjectWriter objectWriter, final FieldNames names) {
+        this.adapter = adapter;
+        this.substitutor = substitutor;
+        for (final KeyValuePair pair : pairs) {
+            if (pair == null || pair.getKey() == null || pair.getKey().isEmpty()) {
+                LOGGER.error("Ignoring a KeyValuePair without a key in ExtendedJsonLayout");
+                continue;
+            }
+            final String value = pair.getValue() == null ? "" : pair.getValue();
+            if (value.contains(VARIABLE_PREFIX)) {
+                dynamicFields.add(new DynamicField(pair.getKey(), value, dateFormat(value)));
+            } else {
+                constants.put(pair.getKey(), value);
+            }
+        }
+        StaticMixedFields encoded = null;
+        if (objectWriter != null && !constants.isEmpty()) {
+            try {
+                encoded = StaticMixedFields.encode(objectWriter, constants, names);
+            } catch (final IOException e) {
+                LOGGER.error("Could not encode the constant KeyValuePair fields, writing them one by one", e);
+            }
+        }
+        this.encodedConstants = encoded;
+    }
+
+    /**
+     * @param config the layout's configuration, whose lookups the values use, or null for the default lookups
+     * @param pairs the configured fields, or null
+     * @param adapter the layout's json adapter, or null
+     * @param objectWriter the layout's writer, used to pre-encode the constant fields, or null if the layout does not
+     * write text and they must be written one by one
+     * @param names the layout's field names, or null
+     * @return the adapter writing the fields after the json adapter's, or the json adapter if there are none
+     */
+    static EventExtendedJson create(final Configuration config, final KeyValuePair[] pairs,
+            final EventExtendedJson adapter, final ObjectWriter objectWriter, final FieldNames names) {
+        if (pairs == null || pairs.length == 0) {
+            return adapter;
+        }
+        final StrSubstitutor substitutor = config == null ? new StrSubstitutor(new Interpolator())
+                : config.getStrSubstitutor();
+        return new AdditionalFields(substitutor, pairs, adapter, objectWriter, names);
+    }
+
+    /**
+     * @return the format of a value that is a single {@code date} lookup, such as {@code ${date:HH:mm}}, or null
+     */
+    private static TimestampFormat dateFormat(final String value) {
+        if (!value.startsWith(DATE_PREFIX) || value.indexOf(VARIABLE_SUFFIX) != value.length() - 1) {
+            return null;
+        }
+        final String pattern = value.substring(DATE_PREFIX.length(), value.length() - 1);
+        if (pattern.isEmpty() || pattern.contains(VARIABLE_PREFIX) || pattern.contains(DEFAULT_DELIMITER)) {
+            return null;
+        }
+        try {
+            return TimestampFormat.forLookup(pattern, TimeZone.getDefault());
+        } catch (final IllegalArgumentException e) {
+            LOGGER.error("Invalid date pattern in '{}': {}", value, e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void registerFields(final ExtendedJsonFields fields) {
+        if (adapter != null) {
+            adapter.registerFields(fields);
+        }
+        if (encodedConstants == null) {
+            for (final Map.Entry<String, Object> constant : constants.entrySet()) {
+                constantFields.add(new ConstantField(fields.register(constant.getKey()), (String) constant.getValue()));
+            }
+        }
+        for (final DynamicField field : dynamicFields) {
+            field.field = fields.register(field.name);
+        }
+    }
+
+    @Override
+    public void writeFields(final LogEvent event, final ExtendedJsonFieldWriter writer) throws IOException {
+        if (adapter != null) {
+            adapter.writeFields(event, writer);
+        }
+        if (encodedConstants != null) {
+            writer.writeRaw(encodedConstants.getJson());
+        } else {
+            for (final ConstantField field : constantFields) {
+                writer.writeString(field.field, field.value);
+            }
+        }
+        for (final DynamicField field : dynamicFields) {
+            writer.writeString(field.field, field.date != null ? field.date.format(event.getTimeMillis())
+                    : substitutor.replace(event, field.template));
+        }
+    }
+
+    private static final class ConstantField {
+
+        final ExtendedJsonField field;
+        final String value;
+
+        ConstantField(final ExtendedJsonField field, final String value) {
+            this.field = field;
+            this.value = value;
+        }
+    }
+
+    private static final class DynamicField {
+
+        final String name;
+        final String template;
+        final TimestampFormat date;
+        ExtendedJsonField field;
+
+        /**
+         * @param date the format of a value that is a single date lookup, or null to substitute the template
+         */
+        DynamicField(final String name, final String template, final TimestampFormat date) {
+            this.name = name;
+            this.template = template;
+            this.date = date;
+        }
+    }
+}
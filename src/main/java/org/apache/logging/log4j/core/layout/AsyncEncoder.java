@@ -0,0 +1,332 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Moves the serialization of events off the logging thread. {@link #submit(LogEvent, ByteBufferDestination, long)}
+ * captures the event, and a pool of encoder threads serializes it; the bytes are handed to the destination in the
+ * order the events were submitted, however the encoder threads finish.
+ * <p>
+ * At most {@code queueSize} events are waiting to be serialized or written. When the queue is full the
+ * {@link QueueFullPolicy} decides whether the logging thread blocks, waits for a while, or drops the event. Encoder
+ * threads are daemons and go away when the layout has been idle for a minute, or when {@link #shutdown(long)} is called
+ * as the layout stops. The next event starts them again.
+ * </p>
+ * <p>
+ * Encoder threads write under the destination's lock, so nothing that holds that lock may wait for them. A rolling
+ * file manager writes the footer under its lock, so events still queued when a file rolls over are written to the next
+ * file, in order.
+ * </p>
+ */
+public final class AsyncEncoder {
+
+    /**
+     * What to do with an event when the encoder queue is full.
+     */
+    public enum QueueFullPolicy {
+        /** Block the logging thread until there is room. */
+        BLOCK,
+        /** Wait up to {@code encoderWaitMillis} for room, then drop the event. */
+        WAIT,
+        /** Drop the event straight away. */
+        DROP
+    }
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ExtendedJsonLayout layout;
+    private final boolean locationInfo;
+    private final QueueFullPolicy policy;
+    private final long waitMillis;
+    private final int threads;
+    private final int queueSize;
+    private final Semaphore permits;
+    private volatile ThreadPoolExecutor executor;
+    private final Queue<Task> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /** Notified whenever the queue has been written out. */
+    private final Object idle = new Object();
+    private final AtomicLong dropped = new AtomicLong();
+
+    AsyncEncoder(final ExtendedJsonLayout layout, final boolean locationInfo, final int threads, final int queueSize,
+            final QueueFullPolicy policy, final long waitMillis) {
+        this.layout = layout;
+        this.locationInfo = locationInfo;
+        this.policy = policy == null ? QueueFullPolicy.BLOCK : policy;
+        this.waitMillis = waitMillis;
+        this.threads = threads;
+        this.queueSize = queueSize;
+        this.permits = new Semaphore(queueSize);
+    }
+
+    private ThreadPoolExecutor newExecutor() {
+        final ThreadPoolExecutor result = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new EncoderThread(runnable,
+                                "ExtendedJsonLayout-Encoder-" + THREAD_NUMBER.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        result.allowCoreThreadTimeOut(true);
+        return result;
+    }
+
+    /**
+     * @return the running executor, started if there is none or it was shut down
+     */
+    private ThreadPoolExecutor executor() {
+        ThreadPoolExecutor current = executor;
+        if (current == null || current.isShutdown()) {
+            synchronized (this) {
+                current = executor;
+                if (current == null || current.isShutdown()) {
+                    current = newExecutor();
+                    executor = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return whether the calling thread is an encoder thread, whose own logging must not wait on the queue it is
+     * supposed to drain
+     */
+    static boolean isEncoderThread() {
+        return Thread.currentThread() instanceof EncoderThread;
+    }
+
+    /**
+     * Captures the event and queues it for serialization, applying the {@link QueueFullPolicy} if the queue is full.
+     *
+     * @param event the event, which may be a reused mutable instance
+     * @param destination where the event's bytes go once it and every event submitted before it are serialized
+     * @param repeatCount the event's {@code repeatCount}, or 0
+     */
+    void submit(final LogEvent event, final ByteBufferDestination destination, final long repeatCount) {
+        if (!acquirePermit()) {
+            dropped.incrementAndGet();
+            return;
+        }
+        final Task task = new Task(capture(event), destination, repeatCount);
+        pending.add(task);
+        try {
+            final ThreadPoolExecutor current = executor();
+            try {
+                current.execute(task);
+            } catch (final RejectedExecutionException e) {
+                if (!current.isShutdown()) {
+                    throw e;
+                }
+                // shut down by a footer meanwhile
+                executor().execute(task);
+            }
+        } catch (final RuntimeException e) {
+            LOGGER.error("Unable to queue event for encoding", e);
+            task.complete(null);
+        }
+    }
+
+    private boolean acquirePermit() {
+        switch (policy) {
+        case DROP:
+            return permits.tryAcquire();
+        case WAIT:
+            try {
+                return permits.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        default:
+            permits.acquireUninterruptibly();
+            return true;
+        }
+    }
+
+    /**
+     * Fixes everything about the event that would otherwise be read from the current thread or from a reused event
+     * later on. This runs on the logging thread: for a reused event it takes a full memento, formatting the message,
+     * since a {@link EventExtendedJson} adapter may read any of the event's fields. {@code AsyncEncoderCaptureBenchmark}
+     * in the benchmarks module measures it against encoding the event in place; it is a small part of the encoding
+     * cost it moves off the thread, see the README.
+     */
+    LogEvent capture(final LogEvent event) {
+        if (locationInfo) {
+            event.getSource();
+        }
+        final LogEvent result = event.toImmutable();
+        result.getThreadName();
+        result.getThreadId();
+        result.getThreadPriority();
+        if (locationInfo) {
+            result.getSource();
+        }
+        return result;
+    }
+
+    /**
+     * Writes every serialized event at the head of the queue. Only one thread writes at a time; a thread that finds
+     * the lock taken leaves its event to the writer, which checks the head again after letting go of the lock.
+     */
+    private void drain() {
+        while (writeLock.tryLock()) {
+            try {
+                Task task;
+                ByteBufferDestination last = null;
+                while ((task = pending.peek()) != null && task.done) {
+                    try {
+                        if (task.bytes != null) {
+                            layout.writeEncoded(task.bytes, task.endOfBatch, task.destination);
+                            last = task.destination;
+                        }
+                    } finally {
+                        pending.poll();
+                        permits.release();
+                    }
+                }
+                if (pending.isEmpty() && last instanceof OutputStreamManager) {
+                    ((OutputStreamManager) last).flush();
+                }
+            } catch (final RuntimeException e) {
+                LOGGER.error("Unable to write encoded event", e);
+            } finally {
+                writeLock.unlock();
+            }
+            final Task head = pending.peek();
+            if (head == null) {
+                synchronized (idle) {
+                    idle.notifyAll();
+                }
+                return;
+            }
+            if (!head.done) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Waits for the events submitted so far to be written. Must not be called while holding the lock of a destination
+     * the events go to.
+     *
+     * @param timeoutMillis how long to wait
+     * @return false if events were still pending when the time ran out
+     */
+    boolean awaitWritten(final long timeoutMillis) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (idle) {
+            while (!pending.isEmpty()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Waits for the events submitted so far to be written, then lets the encoder threads go. Events still queued when
+     * the time runs out are written anyway by the threads before they exit.
+     *
+     * @param timeoutMillis how long to wait
+     * @return false if events were still pending when the time ran out
+     */
+    boolean shutdown(final long timeoutMillis) {
+        final boolean written = awaitWritten(timeoutMillis);
+        final ThreadPoolExecutor current;
+        synchronized (this) {
+            current = executor;
+            executor = null;
+        }
+        if (current != null) {
+            current.shutdown();
+        }
+        return written;
+    }
+
+    /**
+     * @return whether encoder threads may be running, until {@link #shutdown(long)}
+     */
+    boolean isRunning() {
+        final ThreadPoolExecutor current = executor;
+        return current != null && !current.isShutdown();
+    }
+
+    /**
+     * @return how many events were dropped because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private final class Task implements Runnable {
+
+        final LogEvent event;
+        final ByteBufferDestination destination;
+        final boolean endOfBatch;
+        final long repeatCount;
+        byte[] bytes;
+        volatile boolean done;
+
+        Task(final LogEvent event, final ByteBufferDestination destination, final long repeatCount) {
+            this.event = event;
+            this.destination = destination;
+            this.endOfBatch = event.isEndOfBatch();
+            this.repeatCount = repeatCount;
+        }
+
+        @Override
+        public void run() {
+            byte[] result = null;
+            try {
+                result = layout.toEventBytes(event, repeatCount);
+            } catch (final Exception e) {
+                LOGGER.error("Unable to encode event", e);
+            }
+            complete(result);
+        }
+
+        void complete(final byte[] result) {
+            bytes = result;
+            done = true;
+            drain();
+        }
+    }
+
+    private static final class EncoderThread extends Thread {
+
+        EncoderThread(final Runnable runnable, final String name) {
+            super(runnable, name);
+        }
+    }
+}
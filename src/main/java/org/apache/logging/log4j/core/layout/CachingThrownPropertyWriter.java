@@ -0,0 +1,86 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.StringWriter;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.ObjectCodec;
+import com.fasterxml.jackson.core.PrettyPrinter;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.core.util.Instantiatable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Writes an event's {@code thrown} field from a {@link ThrownCache}, serializing it with the wrapped property writer
+ * only the first time an exception of a given shape is seen.
+ */
+final class CachingThrownPropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BeanPropertyWriter delegate;
+    private final transient ThrownCache cache;
+
+    CachingThrownPropertyWriter(final BeanPropertyWriter delegate, final ThrownCache cache) {
+        super(delegate);
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final Throwable thrown = ((LogEvent) bean).getThrown();
+        final Object key = thrown == null ? null : cache.keyOf(thrown);
+        if (key == null) {
+            delegate.serializeAsField(bean, gen, prov);
+            return;
+        }
+        SerializableString json = cache.get(key);
+        if (json == null) {
+            // the thread's key does not outlive serializing the throwable
+            final Object entryKey = cache.copyOf(key);
+            json = encode(bean, gen, prov);
+            if (json == null) {
+                return;
+            }
+            cache.put(entryKey, json);
+        }
+        gen.writeFieldName(_name);
+        gen.writeRawValue(json);
+    }
+
+    /**
+     * Serializes the value into a generator set up like the event's. The pretty printer is copied from the event's
+     * generator while it is positioned at this field, so the copy carries its nesting and indents the value as the
+     * event would.
+     *
+     * @return the value's JSON, or null if there is nothing to write
+     */
+    private SerializableString encode(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        if (get(bean) == null) {
+            return null;
+        }
+        final StringWriter out = new StringWriter();
+        final ObjectCodec codec = gen.getCodec();
+        final JsonFactory factory = codec == null ? new JsonFactory() : codec.getFactory();
+        try (final JsonGenerator fragment = factory.createGenerator(out)) {
+            fragment.overrideStdFeatures(-1, gen.getFeatureMask());
+            if (gen.getCharacterEscapes() != null) {
+                fragment.setCharacterEscapes(gen.getCharacterEscapes());
+            }
+            PrettyPrinter prettyPrinter = gen.getPrettyPrinter();
+            if (prettyPrinter instanceof Instantiatable) {
+                prettyPrinter = (PrettyPrinter) ((Instantiatable<?>) prettyPrinter).createInstance();
+            }
+            fragment.setPrettyPrinter(prettyPrinter);
+            delegate.serializeAsElement(bean, fragment, prov);
+        }
+        return new SerializedString(out.toString());
+    }
+}
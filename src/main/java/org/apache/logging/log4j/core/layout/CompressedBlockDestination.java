@@ -0,0 +1,165 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Collects the encoded events bound for a destination and writes them to it as gzip members, one per block.
+ * Concatenated gzip members form a valid gzip stream, so the destination's file can be read with {@code zcat} or
+ * {@link java.util.zip.GZIPInputStream}, and every block can be decompressed on its own.
+ * <p>
+ * A block is written when it holds {@code maxBlockEvents} writes or {@code maxBlockSize} bytes, when the layout is
+ * told the batch has ended, and when the appender closes. Until then the events are only in memory. Once the layout
+ * has closed the block and let go of it, a write that still reaches it is compressed and written straight away.
+ * </p>
+ * <p>
+ * Events are copied into the block under the block's own lock. Writing a block to the destination takes the
+ * destination's lock first and the block's second, the order in which a rolling file manager that writes the footer
+ * under its own lock gets to them.
+ * </p>
+ */
+final class CompressedBlockDestination implements ByteBufferDestination {
+
+    private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final ByteBufferDestination destination;
+    private final int maxBlockSize;
+    private final int maxBlockEvents;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer byteBuffer = ByteBuffer.allocate(CHUNK_SIZE);
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+    private byte[] block;
+    private int blockSize;
+    private int blockEvents;
+    private boolean closed;
+
+    CompressedBlockDestination(final ByteBufferDestination destination, final int maxBlockSize,
+            final int maxBlockEvents, final int level) {
+        this.destination = destination;
+        this.maxBlockSize = maxBlockSize;
+        this.maxBlockEvents = maxBlockEvents;
+        this.deflater = new Deflater(level, true);
+        this.block = new byte[Math.min(maxBlockSize, 64 * 1024) + CHUNK_SIZE];
+    }
+
+    ByteBufferDestination getDestination() {
+        return destination;
+    }
+
+    @Override
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    @Override
+    public ByteBuffer drain(final ByteBuffer buf) {
+        buf.flip();
+        writeBytes(buf);
+        buf.clear();
+        return buf;
+    }
+
+    @Override
+    public void writeBytes(final ByteBuffer data) {
+        final boolean full;
+        synchronized (this) {
+            final int length = data.remaining();
+            ensureCapacity(blockSize + length);
+            data.get(block, blockSize, length);
+            full = added(length);
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    @Override
+    public void writeBytes(final byte[] data, final int offset, final int length) {
+        final boolean full;
+        synchronized (this) {
+            ensureCapacity(blockSize + length);
+            System.arraycopy(data, offset, block, blockSize, length);
+            full = added(length);
+        }
+        if (full) {
+            flush();
+        }
+    }
+
+    private void ensureCapacity(final int minCapacity) {
+        if (minCapacity > block.length) {
+            block = Arrays.copyOf(block, Math.max(block.length << 1, minCapacity));
+        }
+    }
+
+    /**
+     * @return whether the block is to be written, which is left to the caller once it has let go of the block's lock
+     */
+    private boolean added(final int length) {
+        blockSize += length;
+        blockEvents++;
+        return closed || blockSize >= maxBlockSize || (maxBlockEvents > 0 && blockEvents >= maxBlockEvents);
+    }
+
+    /**
+     * Compresses what has been written since the last block and writes it to the destination.
+     */
+    void flush() {
+        synchronized (destination) {
+            synchronized (this) {
+                writeBlock();
+            }
+        }
+    }
+
+    private void writeBlock() {
+        if (blockSize == 0) {
+            return;
+        }
+        destination.writeBytes(GZIP_HEADER, 0, GZIP_HEADER.length);
+        crc.reset();
+        crc.update(block, 0, blockSize);
+        deflater.reset();
+        deflater.setInput(block, 0, blockSize);
+        deflater.finish();
+        while (!deflater.finished()) {
+            final int length = deflater.deflate(chunk, 0, chunk.length);
+            if (length > 0) {
+                destination.writeBytes(chunk, 0, length);
+            }
+        }
+        writeIntLE((int) crc.getValue(), 0);
+        writeIntLE(blockSize, 4);
+        destination.writeBytes(chunk, 0, 8);
+        if (block.length > maxBlockSize + CHUNK_SIZE) {
+            // an oversized event grew the block past what is kept between blocks
+            block = new byte[maxBlockSize + CHUNK_SIZE];
+        }
+        blockSize = 0;
+        blockEvents = 0;
+    }
+
+    /**
+     * Writes the last block. The layout no longer hands the block out afterwards.
+     */
+    void close() {
+        synchronized (destination) {
+            synchronized (this) {
+                writeBlock();
+                closed = true;
+            }
+        }
+    }
+
+    private void writeIntLE(final int value, final int offset) {
+        chunk[offset] = (byte) value;
+        chunk[offset + 1] = (byte) (value >> 8);
+        chunk[offset + 2] = (byte) (value >> 16);
+        chunk[offset + 3] = (byte) (value >> 24);
+    }
+}
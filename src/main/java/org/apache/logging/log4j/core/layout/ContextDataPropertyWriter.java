@@ -0,0 +1,194 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+import org.apache.logging.log4j.util.TriConsumer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Writes an event's {@code contextMap} field straight from its {@link ReadOnlyStringMap}, visiting the entries with
+ * {@link ReadOnlyStringMap#forEach(TriConsumer, Object)} instead of copying them into {@code MapEntry} objects or a
+ * map first. The output is that of log4j's {@code ContextDataSerializer}, or with {@code propertiesAsList} its
+ * {@code ContextDataAsEntryListSerializer}, minus the keys the layout's {@link FieldProjection} leaves out, with
+ * values cut to its {@link FieldLimits}.
+ */
+final class ContextDataPropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final SerializableString KEY = new SerializedString("key");
+
+    private static final SerializableString VALUE = new SerializedString("value");
+
+    private static final ThreadLocal<LimitedEntries> limitedEntries = new ThreadLocal<>();
+
+    private final BeanPropertyWriter delegate;
+    private final boolean asList;
+    private final int maxValueLength;
+    private final transient EntryWriter entryWriter;
+
+    /**
+     * @param delegate the {@code contextMap} property, which still writes a null map
+     * @param asList whether to write the entries as a list of key/value objects
+     * @param projection the keys to write, or null for all
+     * @param maxValueLength the most characters of each value to write, 0 for all
+     */
+    ContextDataPropertyWriter(final BeanPropertyWriter delegate, final boolean asList,
+            final FieldProjection projection, final int maxValueLength) {
+        super(delegate);
+        this.delegate = delegate;
+        this.asList = asList;
+        this.maxValueLength = maxValueLength;
+        this.entryWriter = new EntryWriter(asList,
+                projection != null && projection.hasContextKeyFilter() ? projection : null);
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final ReadOnlyStringMap contextData = ((LogEvent) bean).getContextData();
+        if (contextData == null) {
+            delegate.serializeAsField(bean, gen, prov);
+            return;
+        }
+        gen.writeFieldName(_name);
+        writeValue(contextData, gen, prov);
+    }
+
+    @Override
+    public void serializeAsElement(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final ReadOnlyStringMap contextData = ((LogEvent) bean).getContextData();
+        if (contextData == null) {
+            delegate.serializeAsElement(bean, gen, prov);
+            return;
+        }
+        writeValue(contextData, gen, prov);
+    }
+
+    private void writeValue(final ReadOnlyStringMap contextData, final JsonGenerator gen,
+            final SerializerProvider prov) throws IOException {
+        if (asList) {
+            gen.writeStartArray();
+        } else {
+            gen.writeStartObject();
+        }
+        if (maxValueLength > 0) {
+            final LimitedEntries entries = LimitedEntries.acquire(gen, maxValueLength);
+            try {
+                contextData.forEach(entryWriter.limited, entries);
+                if (entries.truncated) {
+                    FieldLimits.markTruncated(prov);
+                }
+            } finally {
+                entries.release();
+            }
+        } else {
+            contextData.forEach(entryWriter, gen);
+        }
+        if (asList) {
+            gen.writeEndArray();
+        } else {
+            gen.writeEndObject();
+        }
+    }
+
+    private static final class EntryWriter implements TriConsumer<String, Object, JsonGenerator> {
+
+        private final boolean asList;
+        private final FieldProjection projection;
+
+        /**
+         * Writes entries whose values may have to be cut.
+         */
+        final TriConsumer<String, Object, LimitedEntries> limited = new TriConsumer<String, Object, LimitedEntries>() {
+            @Override
+            public void accept(final String key, final Object value, final LimitedEntries entries) {
+                final String text = String.valueOf(value);
+                final int length = FieldLimits.cutLength(text, entries.maxValueLength);
+                if (length < text.length()) {
+                    entries.truncated = true;
+                    write(key, text.substring(0, length), entries.gen);
+                } else {
+                    write(key, text, entries.gen);
+                }
+            }
+        };
+
+        EntryWriter(final boolean asList, final FieldProjection projection) {
+            this.asList = asList;
+            this.projection = projection;
+        }
+
+        @Override
+        public void accept(final String key, final Object value, final JsonGenerator gen) {
+            write(key, String.valueOf(value), gen);
+        }
+
+        void write(final String key, final String value, final JsonGenerator gen) {
+            if (projection != null && !projection.includesContextKey(key)) {
+                return;
+            }
+            try {
+                if (asList) {
+                    gen.writeStartObject();
+                    gen.writeFieldName(KEY);
+                    gen.writeString(key);
+                    gen.writeFieldName(VALUE);
+                    gen.writeString(value);
+                    gen.writeEndObject();
+                } else {
+                    gen.writeStringField(key, value);
+                }
+            } catch (final IOException e) {
+                throw new IllegalStateException("Problem with key " + key, e);
+            }
+        }
+    }
+
+    /**
+     * The state of one limited write, kept per thread like {@link FormattableMessagePropertyWriter}'s buffer.
+     */
+    private static final class LimitedEntries {
+
+        JsonGenerator gen;
+        int maxValueLength;
+        boolean truncated;
+        boolean inUse;
+
+        static LimitedEntries acquire(final JsonGenerator gen, final int maxValueLength) {
+            LimitedEntries entries = null;
+            if (Constants.ENABLE_THREADLOCALS) {
+                entries = limitedEntries.get();
+                if (entries == null) {
+                    entries = new LimitedEntries();
+                    limitedEntries.set(entries);
+                } else if (entries.inUse) {
+                    // a context value whose toString() logs
+                    entries = null;
+                }
+            }
+            if (entries == null) {
+                entries = new LimitedEntries();
+            }
+            entries.gen = gen;
+            entries.maxValueLength = maxValueLength;
+            entries.truncated = false;
+            entries.inUse = true;
+            return entries;
+        }
+
+        void release() {
+            gen = null;
+            inUse = false;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+/**
+ * Adds fields to each event written by {@link ExtendedJsonLayout}, with access to the event itself.
+ * <p>
+ * Unlike {@link ExtendedJson}, no map is built or shared: the adapter registers the names of the fields it writes
+ * once, when the layout is created, and then writes their values for each event straight into the JSON output,
+ * so request-scoped values can be added without allocating or boxing anything.
+ * </p>
+ * <pre>
+ * public class RequestFields implements EventExtendedJson {
+ *     private ExtendedJsonField requestId;
+ *
+ *     public void registerFields(ExtendedJsonFields fields) {
+ *         requestId = fields.register("requestId");
+ *     }
+ *
+ *     public void writeFields(LogEvent event, ExtendedJsonFieldWriter writer) throws IOException {
+ *         writer.writeString(requestId, event.getContextData().&lt;String&gt; getValue("requestId"));
+ *     }
+ * }
+ * </pre>
+ * <p>
+ * Implementations need a public no-argument constructor and are set on the layout with {@code jsonAdapter}, like
+ * {@link ExtendedJson} adapters. One instance is created per layout and called from every logging thread.
+ * </p>
+ */
+public interface EventExtendedJson {
+
+    /**
+     * Called once, when the layout is created and before any event is written.
+     *
+     * @param fields registers the fields this adapter writes
+     */
+    void registerFields(ExtendedJsonFields fields);
+
+    /**
+     * Writes this adapter's fields for an event, after the event's own fields.
+     *
+     * @param event the event being written; do not keep a reference to it, it may be reused
+     * @param writer writes values for the registered fields; only valid during this call
+     * @throws IOException if the output cannot be written
+     */
+    void writeFields(LogEvent event, ExtendedJsonFieldWriter writer) throws IOException;
+
+}
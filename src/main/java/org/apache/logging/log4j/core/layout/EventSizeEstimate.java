@@ -0,0 +1,63 @@
+package org.apache.logging.log4j.core.layout;
+
+/**
+ * A running estimate of how large a layout's serialized events are, used to size the reusable buffers events are
+ * written into and to decide how much of a buffer a thread may keep between events.
+ * <p>
+ * The estimate is a moving average which a sampled event moves an eighth of the way towards its own size. Each thread
+ * samples one event in {@value #SAMPLE_INTERVAL} of its own, and only writes the average when it changes, so that
+ * threads logging at once do not keep writing the same shared field. Updates from concurrent threads may be lost,
+ * which only makes the estimate a little less exact.
+ * </p>
+ */
+final class EventSizeEstimate {
+
+    private static final int SHIFT = 3;
+
+    static final int SAMPLE_INTERVAL = 16;
+
+    private final int minimum;
+    private final int maximum;
+    private volatile int average;
+
+    /**
+     * @param minimum the smallest buffer to start from
+     * @param maximum the largest buffer a thread keeps between events
+     */
+    EventSizeEstimate(final int minimum, final int maximum) {
+        this.minimum = Math.min(minimum, maximum);
+        this.maximum = maximum;
+        this.average = this.minimum;
+    }
+
+    /**
+     * @param size the size of the event just written
+     * @param sequence the number of events the calling thread has written, which picks the events sampled
+     */
+    void record(final int size, final int sequence) {
+        if (sequence % SAMPLE_INTERVAL != 0) {
+            return;
+        }
+        final int current = average;
+        final int next = current + ((size - current) >> SHIFT);
+        if (next != current) {
+            average = next;
+        }
+    }
+
+    /**
+     * @return the capacity to give a buffer before an event is written into it: the estimate plus a quarter, within
+     *         the minimum and maximum
+     */
+    int capacity() {
+        final int current = average;
+        return Math.max(minimum, Math.min(maximum, current + (current >> 2)));
+    }
+
+    /**
+     * @return the largest buffer a thread keeps between events
+     */
+    int getMaximum() {
+        return maximum;
+    }
+}
@@ -1,30 +1,44 @@
 package org.apache.logging.log4j.core.layout;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
-
-public class ExtendedJsonAdapter implements ExtendedJson{
-	
-	private static final Logger LOG = LogManager.getLogger(ExtendedJsonAdapter.class);
+/**
+ * Adds the local {@code hostname} to every event. The name is resolved in the background by {@link HostName}; until it
+ * arrives, a name found without DNS is written, and the map is replaced once the resolved name is known. Creating an
+ * adapter never waits for the resolution.
+ * <p>
+ * As a {@link StaticExtendedJson}, the map is encoded once and again only when {@link #getMixedFields()} returns a
+ * different instance. A subclass that changes the fields after the layout is built must return a new map with the
+ * changes; an entry put into the returned map is not written until the map is replaced.
+ * </p>
+ */
+public class ExtendedJsonAdapter implements StaticExtendedJson{
 	
-	HashMap<String, Object> mixedFields = new HashMap<String, Object>();
+	volatile HashMap<String, Object> mixedFields;
+
+	private volatile String hostname;
 
 	@Override
 	public Map<String, Object> getMixedFields() {
+		final String current = HostName.get();
+		if (current != hostname) {
+			setHostname(current);
+		}
 		return mixedFields;
 	}
 	
 	public ExtendedJsonAdapter() {
-		try {
-			mixedFields.put("hostname", InetAddress.getLocalHost().getHostName());
-		} catch (UnknownHostException e) {
-			LOG.warn("Could not get hostname", e);
-		}
+		setHostname(HostName.get());
+	}
+
+	private void setHostname(final String name) {
+		// keep whatever else was put in the map
+		final HashMap<String, Object> fields = mixedFields == null ? new HashMap<String, Object>()
+				: new HashMap<String, Object>(mixedFields);
+		fields.put("hostname", name);
+		mixedFields = fields;
+		hostname = name;
 	}
 
 }
@@ -0,0 +1,32 @@
+package org.apache.logging.log4j.core.layout;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * A field name registered by an {@link EventExtendedJson} adapter. The name is mapped to the layout's
+ * {@link FieldNames}, quoted and encoded once, when it is registered, and reused for every event.
+ */
+public final class ExtendedJsonField {
+
+    private final String name;
+    private final SerializableString encodedName;
+
+    ExtendedJsonField(final String name, final String outputName) {
+        this.name = name;
+        this.encodedName = new SerializedString(outputName);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    SerializableString getEncodedName() {
+        return encodedName;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
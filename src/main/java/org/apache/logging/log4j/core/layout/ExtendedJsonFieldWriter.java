@@ -0,0 +1,104 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.core.util.Constants;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+
+/**
+ * Writes the values of an {@link EventExtendedJson} adapter's fields into the event being serialized.
+ * <p>
+ * Instances are handed to {@link EventExtendedJson#writeFields} and are only valid during that call. Each logging
+ * thread reuses its own writer, unless thread locals are disabled.
+ * </p>
+ */
+public final class ExtendedJsonFieldWriter {
+
+    private static final ThreadLocal<ExtendedJsonFieldWriter> writers = new ThreadLocal<>();
+
+    private JsonGenerator gen;
+
+    private ExtendedJsonFieldWriter() {
+    }
+
+    /**
+     * Writes a string field; nothing is written if the value is null.
+     *
+     * @param field a field registered by the adapter
+     * @param value the value
+     * @throws IOException if the output cannot be written
+     */
+    public void writeString(final ExtendedJsonField field, final String value) throws IOException {
+        if (value != null) {
+            gen.writeFieldName(field.getEncodedName());
+            gen.writeString(value);
+        }
+    }
+
+    /**
+     * Writes a numeric field.
+     *
+     * @param field a field registered by the adapter
+     * @param value the value
+     * @throws IOException if the output cannot be written
+     */
+    public void writeLong(final ExtendedJsonField field, final long value) throws IOException {
+        gen.writeFieldName(field.getEncodedName());
+        gen.writeNumber(value);
+    }
+
+    /**
+     * Writes a boolean field.
+     *
+     * @param field a field registered by the adapter
+     * @param value the value
+     * @throws IOException if the output cannot be written
+     */
+    public void writeBoolean(final ExtendedJsonField field, final boolean value) throws IOException {
+        gen.writeFieldName(field.getEncodedName());
+        gen.writeBoolean(value);
+    }
+
+    /**
+     * Writes a field whose name was not registered up front, for the {@link ExtendedJson} bridge.
+     */
+    void writeObject(final String name, final Object value) throws IOException {
+        gen.writeObjectField(name, value);
+    }
+
+    /**
+     * Writes fields that have already been encoded, separators included.
+     */
+    void writeRaw(final SerializableString fields) throws IOException {
+        gen.writeRaw(fields);
+    }
+
+    /**
+     * Returns a writer for the generator. The caller must {@link #release} it once the adapter has written its
+     * fields.
+     */
+    static ExtendedJsonFieldWriter acquire(final JsonGenerator gen) {
+        ExtendedJsonFieldWriter writer = null;
+        if (Constants.ENABLE_THREADLOCALS) {
+            writer = writers.get();
+            if (writer == null) {
+                writer = new ExtendedJsonFieldWriter();
+                writers.set(writer);
+            } else if (writer.gen != null) {
+                // a nested logging call on this thread, while the outer event is still being written
+                writer = null;
+            }
+        }
+        if (writer == null) {
+            writer = new ExtendedJsonFieldWriter();
+        }
+        writer.gen = gen;
+        return writer;
+    }
+
+    void release() {
+        gen = null;
+    }
+}
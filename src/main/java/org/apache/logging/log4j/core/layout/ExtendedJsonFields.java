@@ -0,0 +1,47 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fields an {@link EventExtendedJson} adapter has registered with its layout.
+ */
+public final class ExtendedJsonFields {
+
+    private final Map<String, ExtendedJsonField> fields = new LinkedHashMap<>();
+
+    private final FieldNames fieldNames;
+
+    ExtendedJsonFields() {
+        this(null);
+    }
+
+    ExtendedJsonFields(final FieldNames fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    /**
+     * Registers a field the adapter will write.
+     *
+     * @param name the field name
+     * @return the key to write the field's values with; registering the same name twice returns the same key
+     */
+    public synchronized ExtendedJsonField register(final String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("name must not be null");
+        }
+        ExtendedJsonField field = fields.get(name);
+        if (field == null) {
+            field = new ExtendedJsonField(name, FieldNames.map(fieldNames, name));
+            fields.put(name, field);
+        }
+        return field;
+    }
+
+    synchronized List<ExtendedJsonField> getFields() {
+        return Collections.unmodifiableList(new ArrayList<>(fields.values()));
+    }
+}
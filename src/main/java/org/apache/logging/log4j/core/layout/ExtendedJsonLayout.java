@@ -17,24 +17,51 @@
 package org.apache.logging.log4j.core.layout;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Writer;
 import java.lang.reflect.Constructor;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
+import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.core.Layout;
 import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.DefaultConfiguration;
 import org.apache.logging.log4j.core.config.Node;
 import org.apache.logging.log4j.core.config.plugins.Plugin;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
-import org.apache.logging.log4j.core.impl.MutableLogEvent;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.Strings;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 
 /**
  * Appends a series of JSON events as strings serialized as bytes.
@@ -245,6 +272,63 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
 
     static final String CONTENT_TYPE = "application/json";
 
+    private static final byte[] SEPARATOR_BYTES = ", ".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The largest buffer, in bytes or chars, a thread keeps between events by default. Events with stack traces are
+     * commonly tens of kilobytes.
+     */
+    static final int DEFAULT_MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+    static final int DEFAULT_ENCODER_QUEUE_SIZE = 1024;
+
+    static final long DEFAULT_ENCODER_WAIT_MILLIS = 10;
+
+    /**
+     * How long {@link #stop(long, TimeUnit)} waits for the asynchronous encoder to write the events already queued
+     * when it is given no timeout.
+     */
+    private static final long ENCODER_SHUTDOWN_MILLIS = 5000;
+
+    /**
+     * The encoding of the events written by {@code encode}.
+     */
+    public enum Format {
+        /** JSON text, the default. */
+        JSON("application/json"),
+        /**
+         * Smile binary JSON; field names repeated within an event are written as back-references. Needs
+         * jackson-dataformat-smile.
+         */
+        SMILE("application/x-jackson-smile"),
+        /** CBOR (RFC 7049). Needs jackson-dataformat-cbor. */
+        CBOR("application/cbor");
+
+        private final String contentType;
+
+        Format(final String contentType) {
+            this.contentType = contentType;
+        }
+    }
+
+    /**
+     * How {@code encode} compresses the events it writes.
+     */
+    public enum Compression {
+        /** Events are written as they are. */
+        NONE,
+        /**
+         * Events are collected into blocks, each written as a gzip member; see {@link CompressedBlockDestination}.
+         */
+        GZIP
+    }
+
+    static final int DEFAULT_COMPRESSION_BLOCK_SIZE = 64 * 1024;
+
+    static final ThreadLocal<ReusableByteArrayOutputStream> outputStreams = new ThreadLocal<>();
+
+    static final ThreadLocal<ReusableStringWriter> stringWriters = new ThreadLocal<>();
+
     public static class Builder<B extends Builder<B>> extends AbstractJacksonLayout.Builder<B>
             implements org.apache.logging.log4j.core.util.Builder<ExtendedJsonLayout> {
 
@@ -266,6 +350,96 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
         @PluginBuilderAttribute
         private boolean stacktraceAsString = true;
 
+        @PluginBuilderAttribute
+        private int maxRetainedBufferSize = DEFAULT_MAX_RETAINED_BUFFER_SIZE;
+
+        @PluginBuilderAttribute
+        private int thrownCacheSize;
+
+        @PluginBuilderAttribute
+        private int stacktraceMaxFrames;
+
+        @PluginBuilderAttribute
+        private int stacktraceMaxCauses;
+
+        @PluginBuilderAttribute
+        private String stacktraceIncludePackages;
+
+        @PluginBuilderAttribute
+        private String stacktraceExcludePackages;
+
+        @PluginBuilderAttribute
+        private boolean stacktraceFoldCommonFrames;
+
+        @PluginBuilderAttribute
+        private int encoderThreads;
+
+        @PluginBuilderAttribute
+        private int encoderQueueSize = DEFAULT_ENCODER_QUEUE_SIZE;
+
+        @PluginBuilderAttribute
+        private AsyncEncoder.QueueFullPolicy encoderQueueFullPolicy = AsyncEncoder.QueueFullPolicy.BLOCK;
+
+        @PluginBuilderAttribute
+        private long encoderWaitMillis = DEFAULT_ENCODER_WAIT_MILLIS;
+
+        @PluginBuilderAttribute
+        private Format format = Format.JSON;
+
+        @PluginBuilderAttribute
+        private Compression compression = Compression.NONE;
+
+        @PluginBuilderAttribute
+        private int compressionBlockSize = DEFAULT_COMPRESSION_BLOCK_SIZE;
+
+        @PluginBuilderAttribute
+        private int compressionBlockEvents;
+
+        @PluginBuilderAttribute
+        private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+        @PluginBuilderAttribute
+        private String includeFields;
+
+        @PluginBuilderAttribute
+        private String excludeFields;
+
+        @PluginBuilderAttribute
+        private boolean omitDefaults;
+
+        @PluginBuilderAttribute
+        private String includeContextKeys;
+
+        @PluginBuilderAttribute
+        private String excludeContextKeys;
+
+        @PluginBuilderAttribute
+        private FieldNames.Schema schema;
+
+        @PluginBuilderAttribute
+        private String fieldNameMapping;
+
+        @PluginBuilderAttribute
+        private int maxEventBytes;
+
+        @PluginBuilderAttribute
+        private int maxMessageLength;
+
+        @PluginBuilderAttribute
+        private int maxContextValueLength;
+
+        @PluginBuilderAttribute
+        private String timestampPattern;
+
+        @PluginBuilderAttribute
+        private String timestampTimeZone;
+
+        @PluginElement("RepeatSuppression")
+        private RepeatSuppression repeatSuppression;
+
+        @PluginElement("AdditionalField")
+        private KeyValuePair[] additionalFields;
+
         public Builder() {
             super();
             setCharset(StandardCharsets.UTF_8);
@@ -276,8 +450,32 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
             final boolean encodeThreadContextAsList = properties && propertiesAsList;
             final String headerPattern = toStringOrNull(getHeader());
             final String footerPattern = toStringOrNull(getFooter());
+            final StackTraceTrimmer trimmer = includeStacktrace ? StackTraceTrimmer.create(stacktraceMaxFrames,
+                    stacktraceMaxCauses, stacktraceIncludePackages, stacktraceExcludePackages,
+                    stacktraceFoldCommonFrames, stacktraceAsString) : null;
+            if (format != Format.JSON && (isComplete() || thrownCacheSize > 0)) {
+                LOGGER.warn("complete and thrownCacheSize only apply to the JSON format, not {}", format);
+            }
+            if (compression != Compression.NONE && isComplete()) {
+                LOGGER.warn("complete does not apply to compressed output");
+            }
+            int retainedBufferSize = maxRetainedBufferSize;
+            if (retainedBufferSize <= 0) {
+                LOGGER.warn("maxRetainedBufferSize={} is not positive, using {}", maxRetainedBufferSize,
+                        DEFAULT_MAX_RETAINED_BUFFER_SIZE);
+                retainedBufferSize = DEFAULT_MAX_RETAINED_BUFFER_SIZE;
+            }
             return new ExtendedJsonLayout(getConfiguration(), locationInfo, properties, encodeThreadContextAsList, isComplete(),
-                    isCompact(), getEventEol(), headerPattern, footerPattern, getCharset(), includeStacktrace, stacktraceAsString, jsonAdapterClassName);
+                    isCompact(), getEventEol(), headerPattern, footerPattern, getCharset(), includeStacktrace, stacktraceAsString, jsonAdapterClassName,
+                    retainedBufferSize, thrownCacheSize, trimmer, encoderThreads, encoderQueueSize,
+                    encoderQueueFullPolicy, encoderWaitMillis, format, compression, compressionBlockSize,
+                    compressionBlockEvents, compressionLevel,
+                    FieldProjection.create(includeFields, excludeFields, omitDefaults, includeContextKeys,
+                            excludeContextKeys),
+                    FieldNames.create(schema, fieldNameMapping),
+                    TimestampFormat.create(timestampPattern, timestampTimeZone), maxEventBytes,
+                    FieldLimits.create(maxMessageLength, maxContextValueLength), repeatSuppression,
+                    additionalFields);
         }
 
         protected String toStringOrNull(final byte[] header) {
@@ -300,6 +498,126 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
 			return jsonAdapterClassName;
 		}
 
+        public int getMaxRetainedBufferSize() {
+            return maxRetainedBufferSize;
+        }
+
+        public int getThrownCacheSize() {
+            return thrownCacheSize;
+        }
+
+        public int getStacktraceMaxFrames() {
+            return stacktraceMaxFrames;
+        }
+
+        public int getStacktraceMaxCauses() {
+            return stacktraceMaxCauses;
+        }
+
+        public String getStacktraceIncludePackages() {
+            return stacktraceIncludePackages;
+        }
+
+        public String getStacktraceExcludePackages() {
+            return stacktraceExcludePackages;
+        }
+
+        public boolean isStacktraceFoldCommonFrames() {
+            return stacktraceFoldCommonFrames;
+        }
+
+        public int getEncoderThreads() {
+            return encoderThreads;
+        }
+
+        public int getEncoderQueueSize() {
+            return encoderQueueSize;
+        }
+
+        public AsyncEncoder.QueueFullPolicy getEncoderQueueFullPolicy() {
+            return encoderQueueFullPolicy;
+        }
+
+        public long getEncoderWaitMillis() {
+            return encoderWaitMillis;
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        public Compression getCompression() {
+            return compression;
+        }
+
+        public int getCompressionBlockSize() {
+            return compressionBlockSize;
+        }
+
+        public int getCompressionBlockEvents() {
+            return compressionBlockEvents;
+        }
+
+        public int getCompressionLevel() {
+            return compressionLevel;
+        }
+
+        public String getIncludeFields() {
+            return includeFields;
+        }
+
+        public String getExcludeFields() {
+            return excludeFields;
+        }
+
+        public boolean isOmitDefaults() {
+            return omitDefaults;
+        }
+
+        public String getIncludeContextKeys() {
+            return includeContextKeys;
+        }
+
+        public String getExcludeContextKeys() {
+            return excludeContextKeys;
+        }
+
+        public FieldNames.Schema getSchema() {
+            return schema;
+        }
+
+        public String getFieldNameMapping() {
+            return fieldNameMapping;
+        }
+
+        public int getMaxEventBytes() {
+            return maxEventBytes;
+        }
+
+        public int getMaxMessageLength() {
+            return maxMessageLength;
+        }
+
+        public int getMaxContextValueLength() {
+            return maxContextValueLength;
+        }
+
+        public String getTimestampPattern() {
+            return timestampPattern;
+        }
+
+        public String getTimestampTimeZone() {
+            return timestampTimeZone;
+        }
+
+        public RepeatSuppression getRepeatSuppression() {
+            return repeatSuppression;
+        }
+
+        public KeyValuePair[] getAdditionalFields() {
+            return additionalFields;
+        }
+
 
         /**
          * If "true", includes the stacktrace of any Throwable in the generated JSON, defaults to "true".
@@ -325,39 +643,424 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
         }
 
         /**
-         * If "true", includes the stacktrace of any Throwable in the generated JSON, defaults to "true".
-         * @param includeStacktrace If "true", includes the stacktrace of any Throwable in the generated JSON, defaults to "true".
+         * If "true", includes the stacktrace of any Throwable in the generated JSON, defaults to "true".
+         * @param includeStacktrace If "true", includes the stacktrace of any Throwable in the generated JSON, defaults to "true".
+         * @return this builder
+         */
+        public B setIncludeStacktrace(boolean includeStacktrace) {
+            this.includeStacktrace = includeStacktrace;
+            return asBuilder();
+        }
+        
+        public B setStacktraceAsString(boolean stacktraceAsString) {
+            this.stacktraceAsString = stacktraceAsString;
+            return asBuilder();
+        }
+        
+
+		public B setJsonAdapter(String jsonAdapter) {
+			this.jsonAdapterClassName = jsonAdapter;
+			return asBuilder();
+		}
+
+        /**
+         * The largest buffer, in bytes or chars, each logging thread keeps for serializing events, defaults to 64 KiB.
+         * Larger events are still written in full, but their buffer is given up afterwards.
+         * @param maxRetainedBufferSize the largest buffer a thread keeps between events, positive
+         * @return this builder
+         */
+        public B setMaxRetainedBufferSize(int maxRetainedBufferSize) {
+            this.maxRetainedBufferSize = maxRetainedBufferSize;
+            return asBuilder();
+        }
+
+        /**
+         * How many distinct exceptions to keep the serialized {@code thrown} field of, defaults to 0 (no cache).
+         * See {@link ThrownCache}.
+         * @param thrownCacheSize the maximum number of cached exceptions
+         * @return this builder
+         */
+        public B setThrownCacheSize(int thrownCacheSize) {
+            this.thrownCacheSize = thrownCacheSize;
+            return asBuilder();
+        }
+
+        /**
+         * The most stack frames to write per throwable, defaults to 0 (all). The rest are counted in an
+         * {@code omitted} element.
+         * @param stacktraceMaxFrames the most frames written per throwable
+         * @return this builder
+         */
+        public B setStacktraceMaxFrames(int stacktraceMaxFrames) {
+            this.stacktraceMaxFrames = stacktraceMaxFrames;
+            return asBuilder();
+        }
+
+        /**
+         * The most levels of {@code cause} to write below the logged throwable, defaults to 0 (all). The rest are
+         * counted in {@code omittedCauses}.
+         * @param stacktraceMaxCauses the most causes written
+         * @return this builder
+         */
+        public B setStacktraceMaxCauses(int stacktraceMaxCauses) {
+            this.stacktraceMaxCauses = stacktraceMaxCauses;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated class name prefixes; if set, only frames of matching classes are written.
+         * @param stacktraceIncludePackages the packages whose frames are written
+         * @return this builder
+         */
+        public B setStacktraceIncludePackages(String stacktraceIncludePackages) {
+            this.stacktraceIncludePackages = stacktraceIncludePackages;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated class name prefixes whose frames are left out, e.g. "sun.reflect.,java.lang.reflect.".
+         * @param stacktraceExcludePackages the packages whose frames are left out
+         * @return this builder
+         */
+        public B setStacktraceExcludePackages(String stacktraceExcludePackages) {
+            this.stacktraceExcludePackages = stacktraceExcludePackages;
+            return asBuilder();
+        }
+
+        /**
+         * If "true", suppressed exceptions leave out the frames they share with the trace they were added to, as
+         * causes already do, defaults to "false".
+         * @param stacktraceFoldCommonFrames whether to fold the common frames of suppressed exceptions
+         * @return this builder
+         */
+        public B setStacktraceFoldCommonFrames(boolean stacktraceFoldCommonFrames) {
+            this.stacktraceFoldCommonFrames = stacktraceFoldCommonFrames;
+            return asBuilder();
+        }
+
+        /**
+         * How many threads serialize events for {@code encode}, defaults to 0 (the logging thread does). See
+         * {@link AsyncEncoder}.
+         * @param encoderThreads the number of encoder threads
+         * @return this builder
+         */
+        public B setEncoderThreads(int encoderThreads) {
+            this.encoderThreads = encoderThreads;
+            return asBuilder();
+        }
+
+        /**
+         * How many events may wait for the encoder threads, defaults to 1024.
+         * @param encoderQueueSize the encoder queue capacity
+         * @return this builder
+         */
+        public B setEncoderQueueSize(int encoderQueueSize) {
+            this.encoderQueueSize = encoderQueueSize;
+            return asBuilder();
+        }
+
+        /**
+         * What to do with an event when the encoder queue is full, defaults to BLOCK.
+         * @param encoderQueueFullPolicy BLOCK, WAIT or DROP
+         * @return this builder
+         */
+        public B setEncoderQueueFullPolicy(AsyncEncoder.QueueFullPolicy encoderQueueFullPolicy) {
+            this.encoderQueueFullPolicy = encoderQueueFullPolicy;
+            return asBuilder();
+        }
+
+        /**
+         * How long the WAIT policy waits for room in the encoder queue before dropping the event, defaults to 10.
+         * @param encoderWaitMillis the wait in milliseconds
+         * @return this builder
+         */
+        public B setEncoderWaitMillis(long encoderWaitMillis) {
+            this.encoderWaitMillis = encoderWaitMillis;
+            return asBuilder();
+        }
+
+        /**
+         * The encoding of the events written by {@code encode} and {@code toByteArray}, defaults to JSON. With SMILE
+         * or CBOR each event is a self-contained binary document and {@code complete} and {@code eventEol} do not
+         * apply; {@code toSerializable} still returns JSON text.
+         * @param format JSON, SMILE or CBOR
+         * @return this builder
+         */
+        public B setFormat(Format format) {
+            this.format = format;
+            return asBuilder();
+        }
+
+        /**
+         * How {@code encode} compresses its output, defaults to NONE. With GZIP, events are written in blocks of
+         * concatenated gzip members, each block once it is full or the batch has ended; {@code complete} does not
+         * apply.
+         * @param compression NONE or GZIP
+         * @return this builder
+         */
+        public B setCompression(Compression compression) {
+            this.compression = compression;
+            return asBuilder();
+        }
+
+        /**
+         * How many uncompressed bytes a block collects before it is compressed and written, defaults to 64 KiB.
+         * @param compressionBlockSize the block size in bytes
+         * @return this builder
+         */
+        public B setCompressionBlockSize(int compressionBlockSize) {
+            this.compressionBlockSize = compressionBlockSize;
+            return asBuilder();
+        }
+
+        /**
+         * How many events a block collects before it is compressed and written, defaults to 0 (no limit).
+         * @param compressionBlockEvents the events per block
+         * @return this builder
+         */
+        public B setCompressionBlockEvents(int compressionBlockEvents) {
+            this.compressionBlockEvents = compressionBlockEvents;
+            return asBuilder();
+        }
+
+        /**
+         * The Deflate level, 0-9, defaults to -1 (zlib's default, 6).
+         * @param compressionLevel the compression level
+         * @return this builder
+         */
+        public B setCompressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated names of the only event fields to write, e.g. "timeMillis,level,loggerName,message,thrown".
+         * Fields added by the json adapter are always written.
+         * @param includeFields the event fields to write
+         * @return this builder
+         */
+        public B setIncludeFields(String includeFields) {
+            this.includeFields = includeFields;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated names of event fields not to write, e.g. "endOfBatch,loggerFqcn,threadId,threadPriority".
+         * @param excludeFields the event fields to leave out
+         * @return this builder
+         */
+        public B setExcludeFields(String excludeFields) {
+            this.excludeFields = excludeFields;
+            return asBuilder();
+        }
+
+        /**
+         * If "true", event fields whose value is empty, false or zero are left out, e.g. an empty contextMap or
+         * "endOfBatch" : false, defaults to "false".
+         * @param omitDefaults whether to leave out empty and default values
+         * @return this builder
+         */
+        public B setOmitDefaults(boolean omitDefaults) {
+            this.omitDefaults = omitDefaults;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated keys of the only context map entries to write, with properties="true".
+         * @param includeContextKeys the context map keys to write, defaults to all
+         * @return this builder
+         */
+        public B setIncludeContextKeys(String includeContextKeys) {
+            this.includeContextKeys = includeContextKeys;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated keys of context map entries not to write, with properties="true".
+         * @param excludeContextKeys the context map keys to leave out
+         * @return this builder
+         */
+        public B setExcludeContextKeys(String excludeContextKeys) {
+            this.excludeContextKeys = excludeContextKeys;
+            return asBuilder();
+        }
+
+        /**
+         * Writes the fields under the names of a log schema, "ECS" or "GELF", instead of log4j's.
+         * @param schema the preset field names, defaults to none
+         * @return this builder
+         */
+        public B setSchema(FieldNames.Schema schema) {
+            this.schema = schema;
+            return asBuilder();
+        }
+
+        /**
+         * Comma separated renames, e.g. "timeMillis=ts,loggerName=logger", applied over the schema's. Names are the
+         * ones log4j and the json adapter write; includeFields and excludeFields use them too.
+         * @param fieldNameMapping the fields to rename
+         * @return this builder
+         */
+        public B setFieldNameMapping(String fieldNameMapping) {
+            this.fieldNameMapping = fieldNameMapping;
+            return asBuilder();
+        }
+
+        /**
+         * The most bytes an encoded event may take. An event that would take more is written without its thrown,
+         * context map, context stack and marker and with its message cut, and gets a "truncated" : true field; if
+         * even that does not fit, it is dropped. Applies to UTF-8 JSON and the binary formats.
+         * @param maxEventBytes the most bytes per event, defaults to 0 for no limit
+         * @return this builder
+         */
+        public B setMaxEventBytes(int maxEventBytes) {
+            this.maxEventBytes = maxEventBytes;
+            return asBuilder();
+        }
+
+        /**
+         * The most characters of the message to write; the event of a longer message gets a "truncated" : true field.
+         * @param maxMessageLength the most characters, defaults to 0 for all
+         * @return this builder
+         */
+        public B setMaxMessageLength(int maxMessageLength) {
+            this.maxMessageLength = maxMessageLength;
+            return asBuilder();
+        }
+
+        /**
+         * The most characters of each context map value to write; the event of a longer value gets a
+         * "truncated" : true field.
+         * @param maxContextValueLength the most characters, defaults to 0 for all
+         * @return this builder
+         */
+        public B setMaxContextValueLength(int maxContextValueLength) {
+            this.maxContextValueLength = maxContextValueLength;
+            return asBuilder();
+        }
+
+        /**
+         * If set, a "timestamp" field with the event's time formatted with this SimpleDateFormat pattern is written
+         * after timeMillis. "ISO8601" stands for "yyyy-MM-dd'T'HH:mm:ss.SSSXXX".
+         * @param timestampPattern the pattern, defaults to no timestamp field
+         * @return this builder
+         */
+        public B setTimestampPattern(String timestampPattern) {
+            this.timestampPattern = timestampPattern;
+            return asBuilder();
+        }
+
+        /**
+         * @param timestampTimeZone the time zone id the timestamp is formatted in, defaults to "UTC"; an unknown id
+         * is reported and falls back to "UTC"
+         * @return this builder
+         */
+        public B setTimestampTimeZone(String timestampTimeZone) {
+            this.timestampTimeZone = timestampTimeZone;
+            return asBuilder();
+        }
+
+        /**
+         * Leaves out events repeated more often than the suppression allows. When a window ends, or its slot is taken
+         * by another fingerprint, an event with the pattern as its message and a "repeatCount" field sums up what was
+         * left out; windows still open are summed up before the footer. Applies only to the events written by
+         * {@code encode} and {@code encodeBatch}, which appenders use unless {@code log4j2.enableDirectEncoders} is
+         * false; {@code toSerializable} and {@code toByteArray} write every event.
+         * @param repeatSuppression the suppression, defaults to none
          * @return this builder
          */
-        public B setIncludeStacktrace(boolean includeStacktrace) {
-            this.includeStacktrace = includeStacktrace;
+        public B setRepeatSuppression(RepeatSuppression repeatSuppression) {
+            this.repeatSuppression = repeatSuppression;
             return asBuilder();
         }
-        
-        public B setStacktraceAsString(boolean stacktraceAsString) {
-            this.stacktraceAsString = stacktraceAsString;
+
+        /**
+         * Fields written after the json adapter's, from nested KeyValuePair elements whose values may use lookups.
+         * Values without lookups are encoded once; lookups such as $${ctx:requestId} or $${date:HH:mm}, escaped in
+         * the configuration file, are resolved for each event.
+         * @param additionalFields the fields, defaults to none
+         * @return this builder
+         */
+        public B setAdditionalFields(KeyValuePair[] additionalFields) {
+            this.additionalFields = additionalFields;
             return asBuilder();
         }
-        
-
-		public B setJsonAdapter(String jsonAdapter) {
-			this.jsonAdapterClassName = jsonAdapter;
-			return asBuilder();
-		}
     }
 
-	private ExtendedJson jsonAdapter;
+	private EventExtendedJson jsonAdapter;
+
+    private final ExtendedJsonFields jsonAdapterFields;
+
+    private final boolean utf8;
+
+    private final byte[] eolBytes;
+
+    private final EventSizeEstimate sizeEstimate;
+
+    private final ThrownCache thrownCache;
+
+    private final AsyncEncoder asyncEncoder;
+
+    private final ObjectWriter batchWriter;
+
+    private final Format format;
+
+    private final JsonFactory binaryFactory;
+
+    private final ConcurrentMap<ByteBufferDestination, CompressedBlockDestination> compressedBlocks;
+
+    private final int compressionBlockSize;
+
+    private final int compressionBlockEvents;
+
+    private final int compressionLevel;
 
+    private final int maxEventBytes;
+
+    /**
+     * Writes events replaced for exceeding {@link #maxEventBytes}, with their truncated marker.
+     */
+    private final ObjectWriter truncatedWriter;
+
+    private final RepeatSuppression repeatSuppression;
+
+    private final RepeatSuppression.SummaryWriter summaryWriter;
+
+    /**
+     * How many events have been written in complete mode. An event takes its number from it atomically, so of any
+     * number of concurrent writers exactly one writes the first event without the array separator.
+     */
+    private final AtomicLong completeEvents = new AtomicLong();
+
+    private final byte[] separatorBytes;
 
     protected ExtendedJsonLayout(final Configuration config, final boolean locationInfo, final boolean properties,
             final boolean encodeThreadContextAsList,
             final boolean complete, final boolean compact, final boolean eventEol, final String headerPattern,
-            final String footerPattern, final Charset charset, final boolean includeStacktrace, final boolean stacktraceAsString, final String jsonExtenderClass) {
-        super(config, getObjectWriter(encodeThreadContextAsList, includeStacktrace, stacktraceAsString, locationInfo, properties, compact),
-                charset, compact, complete, eventEol,
+            final String footerPattern, final Charset charset, final boolean includeStacktrace, final boolean stacktraceAsString, final String jsonExtenderClass,
+            final int maxRetainedBufferSize, final int thrownCacheSize, final StackTraceTrimmer trimmer,
+            final int encoderThreads, final int encoderQueueSize,
+            final AsyncEncoder.QueueFullPolicy encoderQueueFullPolicy, final long encoderWaitMillis,
+            final Format format, final Compression compression, final int compressionBlockSize,
+            final int compressionBlockEvents, final int compressionLevel, final FieldProjection projection,
+            final FieldNames fieldNames, final TimestampFormat timestampFormat, final int maxEventBytes,
+            final FieldLimits limits, final RepeatSuppression repeatSuppression,
+            final KeyValuePair[] additionalFields) {
+        super(config, withSerializerAttributes(getObjectWriter(encodeThreadContextAsList, includeStacktrace, stacktraceAsString, locationInfo, properties, compact),
+                        format == Format.JSON ? thrownCacheSize : 0, trimmer, projection, fieldNames, timestampFormat,
+                        limits),
+                charset, compact, complete && format == Format.JSON && compression == Compression.NONE, eventEol,
                 PatternLayout.newSerializerBuilder().setConfiguration(config).setPattern(headerPattern).setDefaultPattern(DEFAULT_HEADER).build(),
                 PatternLayout.newSerializerBuilder().setConfiguration(config).setPattern(footerPattern).setDefaultPattern(DEFAULT_FOOTER).build());
         
+        this.binaryFactory = newBinaryFactory(format);
+        this.format = binaryFactory == null ? Format.JSON : format;
+        this.compressedBlocks = compression == Compression.GZIP
+                ? new ConcurrentHashMap<ByteBufferDestination, CompressedBlockDestination>() : null;
+        this.compressionBlockSize = Math.max(compressionBlockSize, 1);
+        this.compressionBlockEvents = compressionBlockEvents;
+        this.compressionLevel = compressionLevel;
+
         Class<?> clazz;
         Object jsonAdapterobject = null;
 		try {
@@ -368,7 +1071,41 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
 			e.printStackTrace();
 		}
         
-        this.jsonAdapter = (ExtendedJson) jsonAdapterobject;
+        if (jsonAdapterobject instanceof EventExtendedJson) {
+            this.jsonAdapter = (EventExtendedJson) jsonAdapterobject;
+        } else if (jsonAdapterobject instanceof ExtendedJson) {
+            // the pre-encoded fields of a StaticExtendedJson are JSON text, which binary generators cannot take raw
+            this.jsonAdapter = new MixedFieldsAdapter((ExtendedJson) jsonAdapterobject,
+                    binaryFactory == null ? objectWriter : null, fieldNames);
+        } else if (jsonAdapterobject != null) {
+            LOGGER.error("{} implements neither {} nor {}", jsonExtenderClass, ExtendedJson.class.getName(),
+                    EventExtendedJson.class.getName());
+        }
+        this.jsonAdapter = AdditionalFields.create(config, additionalFields, jsonAdapter,
+                binaryFactory == null ? objectWriter : null, fieldNames);
+        this.jsonAdapterFields = new ExtendedJsonFields(fieldNames);
+        if (jsonAdapter != null) {
+            jsonAdapter.registerFields(jsonAdapterFields);
+        }
+        this.utf8 = StandardCharsets.UTF_8.equals(getCharset());
+        this.eolBytes = this.eol.getBytes(StandardCharsets.UTF_8);
+        this.separatorBytes = utf8 ? SEPARATOR_BYTES : getBytes(", ");
+        this.sizeEstimate = new EventSizeEstimate(DEFAULT_STRING_BUILDER_SIZE, maxRetainedBufferSize);
+        this.thrownCache = (ThrownCache) objectWriter.getConfig().getAttributes().getAttribute(ThrownCache.class);
+        this.batchWriter = getBatchWriter(objectWriter, compact);
+        this.maxEventBytes = Math.max(maxEventBytes, 0);
+        this.truncatedWriter = this.maxEventBytes > 0
+                ? batchWriter.withAttribute(FieldLimits.TRUNCATED, Boolean.TRUE) : null;
+        this.asyncEncoder = encoderThreads > 0 ? new AsyncEncoder(this, locationInfo, encoderThreads,
+                Math.max(encoderQueueSize, 1), encoderQueueFullPolicy, encoderWaitMillis) : null;
+        this.repeatSuppression = repeatSuppression;
+        this.summaryWriter = repeatSuppression == null ? null : new RepeatSuppression.SummaryWriter() {
+            @Override
+            public void writeSummary(final LogEvent summary, final long repeatCount,
+                    final ByteBufferDestination destination, final boolean flush) {
+                ExtendedJsonLayout.this.writeSummary(summary, repeatCount, destination, flush);
+            }
+        };
     }
     
     static protected ObjectWriter getObjectWriter(boolean encodeThreadContextAsList, boolean includeStacktrace, boolean stacktraceAsString, boolean locationInfo, boolean properties, boolean compact){
@@ -377,6 +1114,104 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
     	return writer;
     }
 
+    /**
+     * @return the factory for the generators of a binary format, or null for JSON or if the format's Jackson module is
+     * missing
+     */
+    private static JsonFactory newBinaryFactory(final Format format) {
+        try {
+            switch (format == null ? Format.JSON : format) {
+            case SMILE:
+                return SmileFactories.create();
+            case CBOR:
+                return CBORFactories.create();
+            default:
+                return null;
+            }
+        } catch (final LinkageError e) {
+            LOGGER.error("Format {} needs the matching jackson-dataformat module on the classpath, writing JSON instead",
+                    format, e);
+            return null;
+        }
+    }
+
+    /**
+     * Keeps {@link SmileFactory} out of the layout's own bytecode, which the verifier would otherwise load with the
+     * layout, so that the jackson-dataformat-smile module is only needed for the Smile format.
+     */
+    private static final class SmileFactories {
+
+        static JsonFactory create() {
+            return new SmileFactory();
+        }
+    }
+
+    /**
+     * As {@link SmileFactories}, for jackson-dataformat-cbor.
+     */
+    private static final class CBORFactories {
+
+        static JsonFactory create() {
+            return new CBORFactory();
+        }
+    }
+
+    /**
+     * The layout's writer, set up to write several events to one generator: Jackson's separator between root values
+     * is dropped, as the layout writes its own end-of-line and array separator, and the generator is not flushed after
+     * every event.
+     */
+    private static ObjectWriter getBatchWriter(final ObjectWriter writer, final boolean compact) {
+        // the same printers as JacksonFactory.JSON, minus the root value separator
+        return writer.with(compact ? new MinimalPrettyPrinter(Strings.EMPTY)
+                : new DefaultPrettyPrinter().withRootSeparator((SerializableString) null))
+                .without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    }
+
+    /**
+     * Hands a new {@link ThrownCache}, the {@link StackTraceTrimmer}, the {@link FieldProjection}, the
+     * {@link FieldNames}, the {@link TimestampFormat} and the {@link FieldLimits} to the writer's serializers, which
+     * find them as attributes keyed by their class.
+     */
+    private static ObjectWriter withSerializerAttributes(final ObjectWriter writer, final int thrownCacheSize,
+            final StackTraceTrimmer trimmer, final FieldProjection projection, final FieldNames fieldNames,
+            final TimestampFormat timestampFormat, final FieldLimits limits) {
+        ObjectWriter result = writer;
+        if (thrownCacheSize > 0) {
+            result = result.withAttribute(ThrownCache.class, new ThrownCache(thrownCacheSize));
+        }
+        if (trimmer != null) {
+            result = result.withAttribute(StackTraceTrimmer.class, trimmer);
+        }
+        if (projection != null) {
+            result = result.withAttribute(FieldProjection.class, projection);
+        }
+        if (fieldNames != null) {
+            result = result.withAttribute(FieldNames.class, fieldNames);
+        }
+        if (timestampFormat != null) {
+            result = result.withAttribute(TimestampFormat.class, timestampFormat);
+        }
+        if (limits != null) {
+            result = result.withAttribute(FieldLimits.class, limits);
+        }
+        return result;
+    }
+
+    /**
+     * @return the cache of serialized exceptions, or null if {@code thrownCacheSize} is not set
+     */
+    public ThrownCache getThrownCache() {
+        return thrownCache;
+    }
+
+    /**
+     * @return the encoder serializing events off the logging thread, or null if {@code encoderThreads} is not set
+     */
+    public AsyncEncoder getAsyncEncoder() {
+        return asyncEncoder;
+    }
+
     /**
      * Returns appropriate JSON header.
      *
@@ -403,6 +1238,17 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
      */
     @Override
     public byte[] getFooter() {
+        if (compressedBlocks != null) {
+            // the appender is closing or rolling over; its destination still takes writes, and the next event after a
+            // rollover starts a new block. Closing a block takes its destination's lock first, which a rolling file
+            // manager already holds here.
+            for (final Iterator<CompressedBlockDestination> blocks = compressedBlocks.values().iterator();
+                    blocks.hasNext();) {
+                final CompressedBlockDestination block = blocks.next();
+                blocks.remove();
+                block.close();
+            }
+        }
         if (!this.complete) {
             return null;
         }
@@ -416,6 +1262,31 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
         return getBytes(buf.toString());
     }
 
+    /**
+     * Stops the layout's background work: writes the summaries of the {@link RepeatSuppression} windows still open and
+     * cancels their ends, then waits for the {@link AsyncEncoder} to write the events already queued and lets its
+     * threads go. An appender calls it as it stops, before its manager writes the footer under the manager's lock,
+     * which the encoder threads need to write. {@link org.apache.logging.log4j.core.appender.MappedFileAppender}
+     * does; log4j's own appenders do not stop their layout, so stop it before them. The next event starts new windows
+     * and the encoder threads again.
+     *
+     * @param timeout how long to wait for the queued events, 0 for up to five seconds
+     * @param timeUnit the unit of the timeout
+     * @return false if events were still queued when the time ran out
+     */
+    public boolean stop(final long timeout, final TimeUnit timeUnit) {
+        final long timeoutMillis = timeout > 0 ? timeUnit.toMillis(timeout) : ENCODER_SHUTDOWN_MILLIS;
+        if (repeatSuppression != null) {
+            // the counts of the windows still open go out before the footer
+            repeatSuppression.stop(summaryWriter);
+        }
+        if (asyncEncoder != null && !asyncEncoder.shutdown(timeoutMillis)) {
+            LOGGER.warn("Stopping with events still queued for encoding");
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public Map<String, String> getContentFormat() {
         final Map<String, String> result = new HashMap<>();
@@ -428,6 +1299,9 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
      * @return The content type.
      */
     public String getContentType() {
+        if (binaryFactory != null) {
+            return format.contentType;
+        }
         return CONTENT_TYPE + "; charset=" + this.getCharset();
     }
 
@@ -443,31 +1317,624 @@ public class ExtendedJsonLayout extends AbstractJacksonLayout {
      */
     public static ExtendedJsonLayout createDefaultLayout() {
         return new ExtendedJsonLayout(new DefaultConfiguration(), false, false, false, false, false, false,
-                DEFAULT_HEADER, DEFAULT_FOOTER, StandardCharsets.UTF_8, true, false, DEFAULT_JSON_EXTENDER_CLASS);
+                DEFAULT_HEADER, DEFAULT_FOOTER, StandardCharsets.UTF_8, true, false, DEFAULT_JSON_EXTENDER_CLASS,
+                DEFAULT_MAX_RETAINED_BUFFER_SIZE, 0, null, 0, DEFAULT_ENCODER_QUEUE_SIZE, AsyncEncoder.QueueFullPolicy.BLOCK,
+                DEFAULT_ENCODER_WAIT_MILLIS, Format.JSON, Compression.NONE,
+                DEFAULT_COMPRESSION_BLOCK_SIZE, 0, Deflater.DEFAULT_COMPRESSION, null, null, null, 0, null,
+                null, null);
     }
     
 
+    /**
+     * Serializes the event into a per-thread reusable buffer sized from recent events, instead of a new
+     * {@code StringBuilder} that grows from its default size on every call.
+     * <p>
+     * With {@code complete} set, the array separator is decided when the event is serialized, but the caller writes
+     * the text later. Events serialized by concurrent threads therefore only form a valid array if they are written in
+     * the order they were serialized; {@link #encode(LogEvent, ByteBufferDestination)} and
+     * {@link #encodeBatch(List, ByteBufferDestination)} decide it as they write and are safe for concurrent producers.
+     * The same holds for {@link #toByteArray(LogEvent)}, {@link #toByteArray(List)} and
+     * {@link #toSerializable(LogEvent, OutputStream)}.
+     * </p>
+     */
+    @Override
+    public String toSerializable(final LogEvent event) {
+        final ReusableStringWriter writer = acquireStringWriter();
+        try {
+            toSerializable(event, writer);
+            return writer.toString();
+        } catch (final IOException e) {
+            // Should this be an ISE or IAE?
+            LOGGER.error(e);
+            return Strings.EMPTY;
+        } finally {
+            writer.release(sizeEstimate);
+        }
+    }
+
     @Override
     public void toSerializable(final LogEvent event, final Writer writer) throws IOException {
-        if (complete && eventCount > 0) {
+        if (follows(1)) {
             writer.append(", ");
         }
-        this.objectWriter.writeValue(writer, convertLog4jEventToExtendedJsonWrapper(event));
+        this.objectWriter.writeValue(writer, convertLog4jEventToExtendedJsonWrapper(event, 0));
         writer.write(eol);
         markEvent();
     }
-    
-    private ExtendedJsonWrapper convertLog4jEventToExtendedJsonWrapper(LogEvent event){
-    	ExtendedJsonWrapper wrapper = new ExtendedJsonWrapper(convertMutableToLog4jEvent(event), jsonAdapter.getMixedFields());
-    	return wrapper;
+
+    /**
+     * Numbers the events about to be written in complete mode.
+     *
+     * @param events how many events are written together
+     * @return whether the first of them follows an event already written, and needs the array separator
+     */
+    private boolean follows(final int events) {
+        return complete && events > 0 && completeEvents.getAndAdd(events) > 0;
+    }
+
+    /**
+     * Counts written events in the inherited {@code eventCount}.
+     */
+    private void markEvents(final int events) {
+        for (int i = 0; i < events; i++) {
+            markEvent();
+        }
+    }
+
+    /**
+     * Writes serialized events to the destination, preceded by the array separator if they follow an event already
+     * written. The separator is decided while holding the destination's lock, which its writes take anyway, so that
+     * the events go out in the order they were numbered.
+     */
+    private void writeEvents(final ReusableByteArrayOutputStream out, final int events,
+            final ByteBufferDestination destination) {
+        if (!complete) {
+            out.writeTo(destination);
+            markEvents(events);
+            return;
+        }
+        synchronized (destination) {
+            if (follows(events)) {
+                destination.writeBytes(separatorBytes, 0, separatorBytes.length);
+            }
+            out.writeTo(destination);
+            markEvents(events);
+        }
+    }
+
+    /**
+     * See {@link #writeEvents(ReusableByteArrayOutputStream, int, ByteBufferDestination)}.
+     */
+    private void writeEvents(final byte[] bytes, final int events, final ByteBufferDestination destination) {
+        if (!complete) {
+            destination.writeBytes(bytes, 0, bytes.length);
+            markEvents(events);
+            return;
+        }
+        synchronized (destination) {
+            if (follows(events)) {
+                destination.writeBytes(separatorBytes, 0, separatorBytes.length);
+            }
+            destination.writeBytes(bytes, 0, bytes.length);
+            markEvents(events);
+        }
+    }
+
+    /**
+     * Writes the event as UTF-8 JSON bytes, including the array separator and end-of-line, to the given stream.
+     *
+     * @param event the event to serialize
+     * @param out the stream to write to
+     * @throws IOException if the stream or Jackson fails
+     */
+    public void toSerializable(final LogEvent event, final OutputStream out) throws IOException {
+        write(batchWriter, event, out, Framing.EVENT, 0);
+        markEvent();
+    }
+
+    /**
+     * How {@link #write(ObjectWriter, LogEvent, OutputStream, Framing, long)} frames an event.
+     */
+    private enum Framing {
+        /** JSON with the array separator and end-of-line. */
+        EVENT,
+        /** JSON with the end-of-line only, the separator being left to {@link #writeEvents}. */
+        UNSEPARATED,
+        /** A document of the layout's binary format. */
+        BINARY
+    }
+
+    private void write(final ObjectWriter writer, final LogEvent event, final OutputStream out, final Framing framing,
+            final long repeatCount) throws IOException {
+        if (framing != Framing.BINARY && out instanceof ReusableByteArrayOutputStream) {
+            writeReusing(writer, event, (ReusableByteArrayOutputStream) out, framing, repeatCount);
+            return;
+        }
+        final ExtendedJsonWrapper wrapper = convertLog4jEventToExtendedJsonWrapper(event, repeatCount);
+        switch (framing) {
+        case BINARY:
+            try (final JsonGenerator gen = binaryFactory.createGenerator(out)) {
+                writer.writeValue(gen, wrapper);
+            }
+            break;
+        case UNSEPARATED:
+            writer.writeValue(out, wrapper);
+            out.write(eolBytes);
+            break;
+        default:
+            if (follows(1)) {
+                out.write(SEPARATOR_BYTES);
+            }
+            writer.writeValue(out, wrapper);
+            out.write(eolBytes);
+        }
+    }
+
+    /**
+     * Writes the event as JSON with the thread's generator and wrapper, which the stream keeps from one event to the
+     * next. The writer must be one that writes no separator between root values, like the {@code batchWriter}.
+     */
+    private void writeReusing(final ObjectWriter writer, final LogEvent event, final ReusableByteArrayOutputStream out,
+            final Framing framing, final long repeatCount) throws IOException {
+        if (framing == Framing.EVENT && follows(1)) {
+            out.write(SEPARATOR_BYTES);
+        }
+        final JsonGenerator gen = out.getGenerator(writer.getFactory());
+        try {
+            writer.writeValue(gen, out.getWrapper(event, jsonAdapter, repeatCount));
+            gen.flush();
+        } catch (final IOException | RuntimeException e) {
+            out.discardGenerator();
+            throw e;
+        }
+        out.write(eolBytes);
+    }
+
+    /**
+     * Writes the event into the stream. With {@code maxEventBytes} set, the stream refuses to grow past it, and an
+     * event that does not fit is written as {@link #truncate(LogEvent)} instead.
+     *
+     * @return false if not even the truncated event fits, in which case the stream is left empty
+     */
+    private boolean writeBounded(final LogEvent event, final ReusableByteArrayOutputStream out, final Framing framing,
+            final long repeatCount) throws IOException {
+        final ObjectWriter writer = framing == Framing.BINARY ? objectWriter : batchWriter;
+        if (maxEventBytes == 0) {
+            write(writer, event, out, framing, repeatCount);
+            return true;
+        }
+        out.setLimit(maxEventBytes);
+        try {
+            write(writer, event, out, framing, repeatCount);
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            if (!out.isLimitExceeded()) {
+                throw e;
+            }
+        }
+        out.reset();
+        try {
+            write(truncatedWriter, truncate(event), out, framing, repeatCount);
+            return true;
+        } catch (final IOException | RuntimeException e) {
+            if (!out.isLimitExceeded()) {
+                throw e;
+            }
+        }
+        out.reset();
+        LOGGER.error("Dropped an event of logger {} which exceeds maxEventBytes={} even when truncated",
+                event.getLoggerName(), maxEventBytes);
+        return false;
+    }
+
+    /**
+     * @return the event without its thrown, context map, context stack and marker, and with no more of its message
+     * than is sure to fit in {@code maxEventBytes} once escaped
+     */
+    private LogEvent truncate(final LogEvent event) {
+        final Message message = event.getMessage();
+        String text = message == null ? null : message.getFormattedMessage();
+        if (text != null) {
+            // a character takes up to six bytes as a JSON escape, leave room for the other fields
+            text = text.substring(0, FieldLimits.cutLength(text, maxEventBytes / 8));
+        }
+        return new Log4jLogEvent.Builder()
+                .setLoggerName(event.getLoggerName())
+                .setLoggerFqcn(event.getLoggerFqcn())
+                .setLevel(event.getLevel())
+                .setMessage(new SimpleMessage(text))
+                .setTimeMillis(event.getTimeMillis())
+                .setNanoTime(event.getNanoTime())
+                .setThreadId(event.getThreadId())
+                .setThreadName(event.getThreadName())
+                .setThreadPriority(event.getThreadPriority())
+                .setEndOfBatch(event.isEndOfBatch())
+                .setContextData(ContextDataFactory.emptyFrozenContextData())
+                .setContextStack(ThreadContext.EMPTY_STACK)
+                .build();
+    }
+
+    /**
+     * Streams the event as UTF-8 bytes into the destination without building an intermediate {@code String} or
+     * {@code byte[]}. Jackson writes into a per-thread reusable buffer which is then copied into the destination with
+     * a single {@link ByteBufferDestination#writeBytes(byte[], int, int)} call, so the destination lock is only held
+     * for the copy and not while the event is being serialized. The thread's Jackson generator and event wrapper are
+     * kept with the buffer; what a plain event still allocates is the serializer provider Jackson creates for every
+     * value it writes, around 150 bytes.
+     * <p>
+     * Falls back to the inherited {@code toByteArray} path when direct encoders are disabled or the layout charset is
+     * not UTF-8.
+     * </p>
+     * <p>
+     * With {@code encoderThreads} set, the event is queued for the {@link AsyncEncoder} instead. With
+     * {@code compression} set, the bytes go to the destination's {@link CompressedBlockDestination}. With
+     * {@code maxEventBytes} set, the buffer never grows past it; a larger event is written truncated. With
+     * {@code RepeatSuppression} set, an event it suppresses is not serialized at all.
+     * </p>
+     * <p>
+     * With {@code complete} set, whether the event needs the array separator is decided under the destination's lock
+     * as the bytes are copied, so that events encoded by concurrent threads form a valid array.
+     * </p>
+     */
+    @Override
+    public void encode(final LogEvent event, final ByteBufferDestination destination) {
+        long repeatCount = 0;
+        if (repeatSuppression != null) {
+            repeatCount = repeatSuppression.check(event, destination, summaryWriter);
+            if (repeatCount < 0) {
+                if (compressedBlocks != null && asyncEncoder == null && event.isEndOfBatch()) {
+                    // the batch still ends here
+                    (destination instanceof CompressedBlockDestination ? (CompressedBlockDestination) destination
+                            : getCompressedBlock(destination)).flush();
+                }
+                return;
+            }
+        }
+        encode(event, destination, repeatCount);
+    }
+
+    private void encode(final LogEvent event, final ByteBufferDestination destination, final long repeatCount) {
+        if (compressedBlocks != null && !(destination instanceof CompressedBlockDestination)) {
+            final CompressedBlockDestination block = getCompressedBlock(destination);
+            encode(event, block, repeatCount);
+            if (asyncEncoder == null && event.isEndOfBatch()) {
+                block.flush();
+            }
+            return;
+        }
+        if (asyncEncoder != null && !AsyncEncoder.isEncoderThread()) {
+            asyncEncoder.submit(event, destination, repeatCount);
+            return;
+        }
+        if (binaryFactory != null) {
+            encodeBinary(event, destination, repeatCount);
+            return;
+        }
+        if (!Constants.ENABLE_DIRECT_ENCODERS || !utf8) {
+            if (repeatCount == 0 && !complete) {
+                super.encode(event, destination);
+                return;
+            }
+            try {
+                final byte[] bytes = toEventBytes(event, repeatCount);
+                if (bytes != null) {
+                    writeEvents(bytes, 1, destination);
+                }
+            } catch (final IOException e) {
+                LOGGER.error(e);
+            }
+            return;
+        }
+        final ReusableByteArrayOutputStream out = acquireOutputStream();
+        try {
+            if (writeBounded(event, out, Framing.UNSEPARATED, repeatCount)) {
+                writeEvents(out, 1, destination);
+            }
+        } catch (final IOException e) {
+            // Should this be an ISE or IAE?
+            LOGGER.error(e);
+        } finally {
+            out.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * Writes the summary of suppressed events that {@link RepeatSuppression} hands over when a window ends without an
+     * event to carry the count.
+     */
+    private void writeSummary(final LogEvent summary, final long repeatCount, final ByteBufferDestination destination,
+            final boolean flush) {
+        final ByteBufferDestination target = destination instanceof CompressedBlockDestination
+                ? ((CompressedBlockDestination) destination).getDestination() : destination;
+        if (target instanceof OutputStreamManager && !((OutputStreamManager) target).isOpen()) {
+            // a window that ended after its appender stopped
+            LOGGER.warn("Dropped the summary of {} suppressed events of logger {}, its appender has stopped",
+                    repeatCount, summary.getLoggerName());
+            return;
+        }
+        encode(summary, destination, repeatCount);
+        if (!flush || asyncEncoder != null) {
+            // the encoder flushes once it has written what is queued
+            return;
+        }
+        ByteBufferDestination written = destination;
+        if (written instanceof CompressedBlockDestination) {
+            ((CompressedBlockDestination) written).flush();
+            written = ((CompressedBlockDestination) written).getDestination();
+        }
+        if (written instanceof OutputStreamManager) {
+            ((OutputStreamManager) written).flush();
+        }
+    }
+
+    private CompressedBlockDestination getCompressedBlock(final ByteBufferDestination destination) {
+        CompressedBlockDestination block = compressedBlocks.get(destination);
+        if (block == null) {
+            block = new CompressedBlockDestination(destination, compressionBlockSize, compressionBlockEvents,
+                    compressionLevel);
+            final CompressedBlockDestination existing = compressedBlocks.putIfAbsent(destination, block);
+            if (existing != null) {
+                block = existing;
+            }
+        }
+        return block;
+    }
+
+    private void encodeBinary(final LogEvent event, final ByteBufferDestination destination, final long repeatCount) {
+        final ReusableByteArrayOutputStream out = acquireOutputStream();
+        try {
+            if (writeBounded(event, out, Framing.BINARY, repeatCount)) {
+                out.writeTo(destination);
+                markEvent();
+            }
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        } finally {
+            out.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * Writes the event as a self-contained document of the layout's binary format.
+     */
+    private void writeBinary(final LogEvent event, final OutputStream out) throws IOException {
+        write(objectWriter, event, out, Framing.BINARY, 0);
+    }
+
+    /**
+     * Returns the event in the layout's {@link Format}.
+     */
+    @Override
+    public byte[] toByteArray(final LogEvent event) {
+        if (binaryFactory == null) {
+            return super.toByteArray(event);
+        }
+        final ReusableByteArrayOutputStream out = acquireOutputStream();
+        try {
+            writeBounded(event, out, Framing.BINARY, 0);
+            markEvent();
+            return out.toByteArray();
+        } catch (final IOException e) {
+            LOGGER.error(e);
+            return new byte[0];
+        } finally {
+            out.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * @return the layout's {@link Format}
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Encodes the events into the destination as if {@link #encode(LogEvent, ByteBufferDestination)} had been called
+     * for each of them, but with a single Jackson generator and a single
+     * {@link ByteBufferDestination#writeBytes(byte[], int, int)} call for the whole batch.
+     *
+     * @param events the events to encode, in order
+     * @param destination the destination to write to
+     */
+    public void encodeBatch(final List<? extends LogEvent> events, final ByteBufferDestination destination) {
+        if (compressedBlocks != null && !(destination instanceof CompressedBlockDestination)) {
+            final CompressedBlockDestination block = getCompressedBlock(destination);
+            encodeBatch(events, block);
+            if (asyncEncoder == null && !events.isEmpty() && events.get(events.size() - 1).isEndOfBatch()) {
+                block.flush();
+            }
+            return;
+        }
+        if (repeatSuppression != null || maxEventBytes > 0) {
+            // each event is checked or bounded on its own
+            for (final LogEvent event : events) {
+                encode(event, destination);
+            }
+            return;
+        }
+        if (asyncEncoder != null && !AsyncEncoder.isEncoderThread()) {
+            for (final LogEvent event : events) {
+                asyncEncoder.submit(event, destination, 0);
+            }
+            return;
+        }
+        if (binaryFactory != null) {
+            for (final LogEvent event : events) {
+                encodeBinary(event, destination, 0);
+            }
+            return;
+        }
+        if (!utf8) {
+            // the separator is decided as the bytes are written, like the UTF-8 path below does
+            writeEvents(toTextBytes(events, false), events.size(), destination);
+            return;
+        }
+        final ReusableByteArrayOutputStream out = acquireOutputStream();
+        try {
+            try (final JsonGenerator gen = batchWriter.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+                writeBatch(events, false, gen);
+            }
+            writeEvents(out, events.size(), destination);
+        } catch (final IOException e) {
+            LOGGER.error(e);
+        } finally {
+            out.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * See {@link #encodeBatch(List, ByteBufferDestination)}.
+     *
+     * @param events the events to encode, in order
+     * @param destination the destination to write to
+     */
+    public void encodeBatch(final LogEvent[] events, final ByteBufferDestination destination) {
+        encodeBatch(Arrays.asList(events), destination);
+    }
+
+    /**
+     * Serializes the events as {@link #toByteArray(LogEvent)} would serialize each of them, using a single Jackson
+     * generator. With {@code complete} set, see {@link #toSerializable(LogEvent)} about the array separator.
+     *
+     * @param events the events to serialize, in order
+     * @return the events' JSON in the layout's charset
+     */
+    public byte[] toByteArray(final List<? extends LogEvent> events) {
+        if (binaryFactory != null) {
+            final ReusableByteArrayOutputStream out = acquireOutputStream();
+            try {
+                for (final LogEvent event : events) {
+                    writeBinary(event, out);
+                }
+                markEvents(events.size());
+                return out.toByteArray();
+            } catch (final IOException e) {
+                LOGGER.error(e);
+                return new byte[0];
+            } finally {
+                out.release(sizeEstimate);
+            }
+        }
+        final byte[] bytes = toTextBytes(events, follows(events.size()));
+        markEvents(events.size());
+        return bytes;
+    }
+
+    /**
+     * Serializes the events as JSON text in the layout's charset.
+     *
+     * @param separated whether the first event follows one already written
+     */
+    private byte[] toTextBytes(final List<? extends LogEvent> events, final boolean separated) {
+        final ReusableStringWriter writer = acquireStringWriter();
+        try {
+            try (final JsonGenerator gen = batchWriter.getFactory().createGenerator(writer)) {
+                writeBatch(events, separated, gen);
+            }
+            return getBytes(writer.toString());
+        } catch (final IOException e) {
+            LOGGER.error(e);
+            return new byte[0];
+        } finally {
+            writer.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * @param separated whether the first event follows one already written
+     */
+    private void writeBatch(final List<? extends LogEvent> events, final boolean separated, final JsonGenerator gen)
+            throws IOException {
+        boolean separator = separated;
+        for (final LogEvent event : events) {
+            if (separator) {
+                gen.writeRaw(", ");
+            }
+            batchWriter.writeValue(gen, convertLog4jEventToExtendedJsonWrapper(event, 0));
+            gen.writeRaw(eol);
+            separator = complete;
+        }
+    }
+
+    /**
+     * Serializes the event, with its end-of-line but without the array separator, for the {@link AsyncEncoder} and
+     * for {@code encode} when it cannot stream the event.
+     *
+     * @return the bytes, or null if the event exceeds {@code maxEventBytes} even when truncated
+     */
+    byte[] toEventBytes(final LogEvent event, final long repeatCount) throws IOException {
+        if (!utf8 && binaryFactory == null) {
+            final ReusableStringWriter writer = acquireStringWriter();
+            try {
+                this.objectWriter.writeValue(writer, convertLog4jEventToExtendedJsonWrapper(event, repeatCount));
+                writer.write(eol);
+                return getBytes(writer.toString());
+            } finally {
+                writer.release(sizeEstimate);
+            }
+        }
+        final ReusableByteArrayOutputStream out = acquireOutputStream();
+        try {
+            return writeBounded(event, out, binaryFactory != null ? Framing.BINARY : Framing.UNSEPARATED,
+                    repeatCount) ? out.toByteArray() : null;
+        } finally {
+            out.release(sizeEstimate);
+        }
+    }
+
+    /**
+     * Writes an event serialized by {@link #toEventBytes(LogEvent, long)}, preceded by the array separator if an event has
+     * already been written, for the {@link AsyncEncoder}, which writes one event at a time in submission order.
+     */
+    void writeEncoded(final byte[] bytes, final boolean endOfBatch, final ByteBufferDestination destination) {
+        writeEvents(bytes, 1, destination);
+        if (endOfBatch && destination instanceof CompressedBlockDestination) {
+            ((CompressedBlockDestination) destination).flush();
+        }
+    }
+
+    private ReusableByteArrayOutputStream acquireOutputStream() {
+        if (!Constants.ENABLE_THREADLOCALS) {
+            final ReusableByteArrayOutputStream result = new ReusableByteArrayOutputStream(sizeEstimate.capacity());
+            result.acquire(sizeEstimate);
+            return result;
+        }
+        ReusableByteArrayOutputStream result = outputStreams.get();
+        if (result == null) {
+            result = new ReusableByteArrayOutputStream(sizeEstimate.capacity());
+            outputStreams.set(result);
+        }
+        if (!result.acquire(sizeEstimate)) {
+            // logging from within serialization on this thread; don't clobber the outer event's bytes
+            result = new ReusableByteArrayOutputStream(sizeEstimate.capacity());
+            result.acquire(sizeEstimate);
+        }
+        return result;
+    }
+
+    private ReusableStringWriter acquireStringWriter() {
+        if (!Constants.ENABLE_THREADLOCALS) {
+            final ReusableStringWriter result = new ReusableStringWriter(sizeEstimate.capacity());
+            result.acquire(sizeEstimate);
+            return result;
+        }
+        ReusableStringWriter result = stringWriters.get();
+        if (result == null) {
+            result = new ReusableStringWriter(sizeEstimate.capacity());
+            stringWriters.set(result);
+        }
+        if (!result.acquire(sizeEstimate)) {
+            // logging from within serialization on this thread; don't clobber the outer event's text
+            result = new ReusableStringWriter(sizeEstimate.capacity());
+            result.acquire(sizeEstimate);
+        }
+        return result;
     }
     
-    private static LogEvent convertMutableToLog4jEvent(final LogEvent event) {
-        // TODO Jackson-based layouts have certain filters set up for Log4jLogEvent.
-        // TODO Need to set up the same filters for MutableLogEvent but don't know how...
-        // This is a workaround.
-        return event instanceof MutableLogEvent
-                ? ((MutableLogEvent) event).createMemento()
-                : event;
+    private ExtendedJsonWrapper convertLog4jEventToExtendedJsonWrapper(LogEvent event, long repeatCount){
+        // MutableLogEvent and RingBufferLogEvent are serialized in place, see ExtendedJsonSerializer
+    	ExtendedJsonWrapper wrapper = new ExtendedJsonWrapper(event, jsonAdapter, repeatCount);
+    	return wrapper;
     }
 }
\ No newline at end of file
@@ -3,20 +3,45 @@ package org.apache.logging.log4j.core.layout;
 // https://stackoverflow.com/a/37063144/1308685
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.jackson.ContextDataAsEntryListSerializer;
+import org.apache.logging.log4j.core.jackson.ContextDataSerializer;
+import org.apache.logging.log4j.core.jackson.JsonConstants;
+
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsonFormatVisitors.JsonObjectFormatVisitor;
 import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
 import com.fasterxml.jackson.databind.ser.BeanSerializer;
+import com.fasterxml.jackson.databind.ser.FilterProvider;
+import com.fasterxml.jackson.databind.ser.PropertyFilter;
 import com.fasterxml.jackson.databind.ser.std.BeanSerializerBase;
 import com.fasterxml.jackson.databind.type.SimpleType;
+import com.fasterxml.jackson.databind.util.NameTransformer;
 
 public final class ExtendedJsonSerializer extends BeanSerializer {
 	
 	private static final long serialVersionUID = 1L;
 
+    private static final String TIME_MILLIS = "timeMillis";
+
+    /**
+     * The serializer used for every wrapped event, built on first use. Jackson creates one instance of this class per
+     * ObjectMapper, and every layout builds its own mapper from its location/properties/stacktrace options, so this
+     * is effectively built once per layout configuration.
+     */
+    private transient volatile ExtendedJsonSerializer eventSerializer;
+
 	public ExtendedJsonSerializer() {
         super(SimpleType.constructUnsafe(ExtendedJsonWrapper.class), null, new BeanPropertyWriter[0], new BeanPropertyWriter[0]);
     }
@@ -25,14 +50,27 @@ public final class ExtendedJsonSerializer extends BeanSerializer {
         super(base);
     }
 
+    ExtendedJsonSerializer(JavaType type, BeanPropertyWriter[] properties) {
+        super(type, null, properties, null);
+    }
+
     @Override
     protected void serializeFields(Object bean, final JsonGenerator gen, SerializerProvider provider) throws IOException {
         if (bean instanceof ExtendedJsonWrapper) {
             ExtendedJsonWrapper mixin = (ExtendedJsonWrapper) bean;
-            Object origin = mixin.getOrigin();
+            LogEvent origin = mixin.getOrigin();
+
+            eventSerializer(provider).serializeFields(origin, gen, provider);
 
-            BeanSerializer serializer = (BeanSerializer) provider.findValueSerializer(origin.getClass());
-            new ExtendedJsonSerializer(serializer).serializeFieldsFiltered(origin, gen, provider);
+            EventExtendedJson fields = mixin.getFields();
+            if (fields != null) {
+                ExtendedJsonFieldWriter writer = ExtendedJsonFieldWriter.acquire(gen);
+                try {
+                    fields.writeFields(origin, writer);
+                } finally {
+                    writer.release();
+                }
+            }
             
             Set<Entry<String, Object>> entries = mixin.getMixed().entrySet();
             
@@ -48,12 +86,183 @@ public final class ExtendedJsonSerializer extends BeanSerializer {
 				}
 			}
 
+            if (mixin.getRepeatCount() > 0) {
+                gen.writeNumberField(FieldNames.map((FieldNames) provider.getAttribute(FieldNames.class),
+                        RepeatSuppression.REPEAT_COUNT_FIELD), mixin.getRepeatCount());
+            }
+            FieldLimits.writeMarker(provider, gen);
+
         } else {
             super.serializeFields(bean, gen, provider);
         }
 
     }
-    
 
+    private ExtendedJsonSerializer eventSerializer(SerializerProvider provider) throws JsonMappingException {
+        ExtendedJsonSerializer serializer = eventSerializer;
+        if (serializer == null) {
+            serializer = createEventSerializer(provider);
+            eventSerializer = serializer;
+        }
+        return serializer;
+    }
+
+    /**
+     * Builds the serializer for wrapped events from the properties log4j's mix-in declares on the {@link LogEvent}
+     * interface rather than on the event's concrete class. {@code MutableLogEvent} and {@code RingBufferLogEvent}
+     * are therefore read in place instead of being copied into a {@link Log4jLogEvent} memento first.
+     * <p>
+     * The properties are put in the order {@link Log4jLogEvent} has always been written in, and the layout's
+     * property filter (location, properties) is applied here once instead of on every event, as is its
+     * {@link FieldProjection} and {@link FieldNames}, if any, and its {@link TimestampFormat} adds a formatted
+     * {@code timestamp}. The {@code message} is written through a {@link FormattableMessagePropertyWriter} and the
+     * {@code contextMap} through a {@link ContextDataPropertyWriter}, both applying the layout's {@link FieldLimits}.
+     * If the layout has a {@link StackTraceTrimmer} or a {@link ThrownCache}, the {@code thrown} property is written
+     * through them, the cache holding the trimmed value.
+     * </p>
+     */
+    private static ExtendedJsonSerializer createEventSerializer(SerializerProvider provider) throws JsonMappingException {
+        final ExtendedJsonSerializer logEvent = new ExtendedJsonSerializer(
+                (BeanSerializerBase) provider.findValueSerializer(LogEvent.class));
+        final ExtendedJsonSerializer log4jLogEvent = new ExtendedJsonSerializer(
+                (BeanSerializerBase) provider.findValueSerializer(Log4jLogEvent.class));
+
+        final Set<String> included = includedProperties(logEvent, provider);
+        final List<BeanPropertyWriter> properties = new ArrayList<>(logEvent._props.length);
+        for (BeanPropertyWriter ordered : log4jLogEvent._props) {
+            for (BeanPropertyWriter property : logEvent._props) {
+                if (property.getName().equals(ordered.getName()) && included.remove(property.getName())) {
+                    properties.add(property);
+                }
+            }
+        }
+        for (BeanPropertyWriter property : logEvent._props) {
+            if (included.remove(property.getName())) {
+                properties.add(property);
+            }
+        }
+        final FieldProjection projection = (FieldProjection) provider.getAttribute(FieldProjection.class);
+        final FieldNames fieldNames = (FieldNames) provider.getAttribute(FieldNames.class);
+        final NameTransformer renamer = fieldNames == null ? null : new NameTransformer() {
+            @Override
+            public String transform(String name) {
+                return fieldNames.map(name);
+            }
+
+            @Override
+            public String reverse(String transformed) {
+                return null;
+            }
+        };
+        final FieldLimits limits = (FieldLimits) provider.getAttribute(FieldLimits.class);
+        final StackTraceTrimmer trimmer = (StackTraceTrimmer) provider.getAttribute(StackTraceTrimmer.class);
+        final ThrownCache thrownCache = (ThrownCache) provider.getAttribute(ThrownCache.class);
+        for (int i = properties.size() - 1; i >= 0; i--) {
+            BeanPropertyWriter property = properties.get(i);
+            final String name = property.getName();
+            if (projection != null && !projection.includes(name)) {
+                properties.remove(i);
+                continue;
+            }
+            // renaming copies the writer into a plain BeanPropertyWriter, so it comes before any wrapping
+            if (renamer != null) {
+                property = property.rename(renamer);
+            }
+            if (JsonConstants.ELT_THROWN.equals(name)) {
+                if (trimmer != null) {
+                    property = new TrimmedThrownPropertyWriter(property, trimmer);
+                }
+                if (thrownCache != null) {
+                    property = new CachingThrownPropertyWriter(property, thrownCache);
+                }
+            } else {
+                if (JsonConstants.ELT_MESSAGE.equals(name)) {
+                    property = new FormattableMessagePropertyWriter(property, FieldLimits.maxMessageLength(limits));
+                } else if (isContextData(property)) {
+                    property = new ContextDataPropertyWriter(property, isContextDataAsList(property), projection,
+                            FieldLimits.maxContextValueLength(limits));
+                }
+                if (projection != null && projection.isOmitDefaults()) {
+                    property = new OmitDefaultPropertyWriter(property);
+                }
+            }
+            properties.set(i, property);
+        }
+        final TimestampFormat timestampFormat = (TimestampFormat) provider.getAttribute(TimestampFormat.class);
+        if (timestampFormat != null && (projection == null || projection.includes(TimestampFormat.FIELD))) {
+            addTimestamp(properties, logEvent, timestampFormat, fieldNames);
+        }
+        return new ExtendedJsonSerializer(provider.constructType(LogEvent.class),
+                properties.toArray(new BeanPropertyWriter[properties.size()]));
+    }
+
+    /**
+     * @return whether the property is the context map, as written by either of log4j's mix-ins
+     */
+    private static boolean isContextData(BeanPropertyWriter property) {
+        final Object serializer = property.getSerializer();
+        return serializer instanceof ContextDataSerializer || isContextDataAsList(property);
+    }
+
+    private static boolean isContextDataAsList(BeanPropertyWriter property) {
+        final Object serializer = property.getSerializer();
+        return serializer instanceof ContextDataAsEntryListSerializer;
+    }
+
+    /**
+     * Adds the formatted {@code timestamp} property after {@code timeMillis}, or first if that is not written.
+     */
+    private static void addTimestamp(List<BeanPropertyWriter> properties, ExtendedJsonSerializer logEvent,
+            TimestampFormat format, FieldNames fieldNames) {
+        BeanPropertyWriter timeMillis = null;
+        for (BeanPropertyWriter property : logEvent._props) {
+            if (TIME_MILLIS.equals(property.getName())) {
+                timeMillis = property;
+            }
+        }
+        if (timeMillis == null) {
+            return;
+        }
+        final String timeMillisName = FieldNames.map(fieldNames, TIME_MILLIS);
+        int index = 0;
+        for (int i = 0; i < properties.size(); i++) {
+            if (properties.get(i).getName().equals(timeMillisName)) {
+                index = i + 1;
+            }
+        }
+        properties.add(index, new TimestampPropertyWriter(timeMillis,
+                FieldNames.map(fieldNames, TimestampFormat.FIELD), format));
+    }
+
+    /**
+     * Asks the serializer's property filter, if there is one, which properties it lets through.
+     */
+    private static Set<String> includedProperties(ExtendedJsonSerializer serializer, SerializerProvider provider) throws JsonMappingException {
+        final Set<String> included = new HashSet<>();
+        final FilterProvider filters = provider.getFilterProvider();
+        final PropertyFilter filter = serializer._propertyFilterId == null || filters == null ? null
+                : filters.findPropertyFilter(serializer._propertyFilterId, null);
+        if (filter == null) {
+            for (BeanPropertyWriter property : serializer._props) {
+                included.add(property.getName());
+            }
+            return included;
+        }
+        final JsonObjectFormatVisitor collector = new JsonObjectFormatVisitor.Base(provider) {
+            @Override
+            public void property(BeanProperty property) {
+                included.add(property.getName());
+            }
+
+            @Override
+            public void optionalProperty(BeanProperty property) {
+                included.add(property.getName());
+            }
+        };
+        for (BeanPropertyWriter property : serializer._props) {
+            filter.depositSchemaProperty(property, collector, provider);
+        }
+        return included;
+    }
 
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.apache.logging.log4j.core.layout;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,8 +11,10 @@ import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 @JsonSerialize(using = ExtendedJsonSerializer.class)
 public class ExtendedJsonWrapper {
 
-    private final LogEvent origin;
+    private LogEvent origin;
     private final Map<String, Object> mixed;
+    private EventExtendedJson fields;
+    private long repeatCount;
 
     public ExtendedJsonWrapper(LogEvent origin) {
         this(origin, new HashMap<String, Object>());
@@ -20,6 +23,30 @@ public class ExtendedJsonWrapper {
     public ExtendedJsonWrapper(LogEvent origin, Map<String, Object> mixedIn) {
         this.origin = origin;
         this.mixed = mixedIn;
+        this.fields = null;
+        this.repeatCount = 0;
+    }
+
+    /**
+     * @param fields the layout's adapter, asked to write its fields after the event's own fields
+     * @param repeatCount the events like this one its {@link RepeatSuppression} left out, or 0
+     */
+    ExtendedJsonWrapper(LogEvent origin, EventExtendedJson fields, long repeatCount) {
+        this.origin = origin;
+        this.mixed = Collections.emptyMap();
+        this.fields = fields;
+        this.repeatCount = repeatCount;
+    }
+
+    /**
+     * Points a wrapper made with {@link #ExtendedJsonWrapper(LogEvent, EventExtendedJson, long)} at another event, so
+     * that a thread can serialize all its events through one wrapper.
+     */
+    ExtendedJsonWrapper set(LogEvent origin, EventExtendedJson fields, long repeatCount) {
+        this.origin = origin;
+        this.fields = fields;
+        this.repeatCount = repeatCount;
+        return this;
     }
 
     public void add(String key, Object value) {
@@ -34,4 +61,12 @@ public class ExtendedJsonWrapper {
         return origin;
     }
 
+    EventExtendedJson getFields() {
+        return fields;
+    }
+
+    long getRepeatCount() {
+        return repeatCount;
+    }
+
 }
\ No newline at end of file
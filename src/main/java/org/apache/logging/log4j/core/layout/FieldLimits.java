@@ -0,0 +1,80 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * The most characters the layout writes of an event's message and of each context map value. Longer values are cut
+ * as they are written, and the event gets a {@code "truncated" : true} field after its other fields.
+ */
+public final class FieldLimits {
+
+    /**
+     * The name of the marker field, before the layout's {@link FieldNames} are applied.
+     */
+    static final String TRUNCATED_FIELD = "truncated";
+
+    /**
+     * The serializer attribute that marks the event being written as truncated, set per call when a value is cut, or
+     * on the writer that writes events replaced for exceeding {@code maxEventBytes}.
+     */
+    static final Object TRUNCATED = new Object();
+
+    private final int maxMessageLength;
+    private final int maxContextValueLength;
+
+    private FieldLimits(final int maxMessageLength, final int maxContextValueLength) {
+        this.maxMessageLength = maxMessageLength;
+        this.maxContextValueLength = maxContextValueLength;
+    }
+
+    /**
+     * @param maxMessageLength the most characters of the message to write, 0 for all
+     * @param maxContextValueLength the most characters of each context map value to write, 0 for all
+     * @return the limits, or null if neither is set
+     */
+    static FieldLimits create(final int maxMessageLength, final int maxContextValueLength) {
+        if (maxMessageLength <= 0 && maxContextValueLength <= 0) {
+            return null;
+        }
+        return new FieldLimits(Math.max(maxMessageLength, 0), Math.max(maxContextValueLength, 0));
+    }
+
+    static int maxMessageLength(final FieldLimits limits) {
+        return limits == null ? 0 : limits.maxMessageLength;
+    }
+
+    static int maxContextValueLength(final FieldLimits limits) {
+        return limits == null ? 0 : limits.maxContextValueLength;
+    }
+
+    /**
+     * @return the length to cut the text to so that it has at most {@code maxLength} characters and does not end in
+     * half a surrogate pair, or its length if it is short enough or there is no limit
+     */
+    static int cutLength(final CharSequence text, final int maxLength) {
+        if (maxLength <= 0 || text.length() <= maxLength) {
+            return text.length();
+        }
+        return Character.isHighSurrogate(text.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+    }
+
+    /**
+     * Marks the event being serialized as truncated.
+     */
+    static void markTruncated(final SerializerProvider provider) {
+        provider.setAttribute(TRUNCATED, Boolean.TRUE);
+    }
+
+    /**
+     * Writes the marker field if the event was truncated.
+     */
+    static void writeMarker(final SerializerProvider provider, final JsonGenerator gen) throws IOException {
+        if (provider.getAttribute(TRUNCATED) != null) {
+            gen.writeBooleanField(
+                    FieldNames.map((FieldNames) provider.getAttribute(FieldNames.class), TRUNCATED_FIELD), true);
+        }
+    }
+}
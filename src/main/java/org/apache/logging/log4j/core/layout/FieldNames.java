@@ -0,0 +1,131 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Renames the fields the layout writes, to a preset {@link Schema} and/or a user mapping such as
+ * {@code "timeMillis=ts,loggerName=logger"}. Names are mapped once, when the layout's serializers and the adapter's
+ * fields are set up, so the renamed output is written with pre-encoded names like the default one.
+ */
+public final class FieldNames {
+
+    /**
+     * Preset mappings from the names log4j and the default adapter write.
+     */
+    public enum Schema {
+        /**
+         * Elastic Common Schema field names, e.g. {@code @timestamp} (epoch millis), {@code log.level} and
+         * {@code log.logger}.
+         */
+        ECS,
+        /**
+         * GELF field names: {@code short_message} and {@code host}, with every other field written as an additional
+         * {@code _field}. GELF's {@code version} can be added with a json adapter.
+         */
+        GELF
+    }
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final Map<String, String> ECS = new HashMap<>();
+
+    private static final Map<String, String> GELF = new HashMap<>();
+
+    /**
+     * Fields GELF defines, which are not turned into additional fields.
+     */
+    private static final Set<String> GELF_FIELDS = new HashSet<>(Arrays.asList("version", "host", "short_message",
+            "full_message", "timestamp", "level", "facility", "line", "file"));
+
+    static {
+        ECS.put("timeMillis", "@timestamp");
+        ECS.put("thread", "process.thread.name");
+        ECS.put("threadId", "process.thread.id");
+        ECS.put("level", "log.level");
+        ECS.put("loggerName", "log.logger");
+        ECS.put("thrown", "error");
+        ECS.put("contextMap", "labels");
+        ECS.put("contextStack", "tags");
+        ECS.put("source", "log.origin");
+        ECS.put("hostname", "host.hostname");
+
+        GELF.put("message", "short_message");
+        GELF.put("hostname", "host");
+        // GELF's level is a syslog severity number, log4j's a name
+        GELF.put("level", "_level");
+    }
+
+    private final Map<String, String> mapping;
+    private final String prefix;
+    private final Set<String> unprefixed;
+
+    private FieldNames(final Map<String, String> mapping, final String prefix, final Set<String> unprefixed) {
+        this.mapping = mapping;
+        this.prefix = prefix;
+        this.unprefixed = unprefixed;
+    }
+
+    /**
+     * @param schema a preset, or null
+     * @param fieldNameMapping comma separated {@code name=newName} pairs, applied over the preset
+     * @return the field names, or null if neither a schema nor a mapping is given
+     */
+    static FieldNames create(final Schema schema, final String fieldNameMapping) {
+        final Map<String, String> mapping = new HashMap<>();
+        String prefix = null;
+        Set<String> unprefixed = Collections.emptySet();
+        if (schema == Schema.ECS) {
+            mapping.putAll(ECS);
+        } else if (schema == Schema.GELF) {
+            mapping.putAll(GELF);
+            prefix = "_";
+            unprefixed = GELF_FIELDS;
+        }
+        if (fieldNameMapping != null) {
+            for (final String pair : fieldNameMapping.split(",")) {
+                final int eq = pair.indexOf('=');
+                if (eq < 0) {
+                    if (!pair.trim().isEmpty()) {
+                        LOGGER.warn("Ignoring '{}' in fieldNameMapping, expected name=newName", pair);
+                    }
+                    continue;
+                }
+                mapping.put(pair.substring(0, eq).trim(), pair.substring(eq + 1).trim());
+            }
+        }
+        if (mapping.isEmpty() && prefix == null) {
+            return null;
+        }
+        return new FieldNames(mapping, prefix, unprefixed);
+    }
+
+    /**
+     * @param name a field name as log4j or the adapter writes it
+     * @return the name to write instead
+     */
+    String map(final String name) {
+        final String mapped = mapping.get(name);
+        if (mapped != null) {
+            return mapped;
+        }
+        if (prefix != null && !unprefixed.contains(name)) {
+            return prefix + name;
+        }
+        return name;
+    }
+
+    /**
+     * Maps a name that may be null, as the layout's components do when no {@link FieldNames} are configured.
+     */
+    static String map(final FieldNames names, final String name) {
+        return names == null ? name : names.map(name);
+    }
+}
@@ -0,0 +1,129 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.logging.log4j.ThreadContext.ContextStack;
+import org.apache.logging.log4j.util.ReadOnlyStringMap;
+
+/**
+ * Which of the event's top-level fields the layout writes. Fields are picked by the names log4j writes them under,
+ * e.g. {@code loggerFqcn} or {@code contextMap}, before any {@link FieldNames} are applied, and the choice is applied
+ * once, when the layout's serializer is built; excluded fields are not looked at per event. Fields added by an {@link ExtendedJson} or
+ * {@link EventExtendedJson} adapter are always written.
+ * <p>
+ * The keys of the context map can be picked the same way; they are matched per entry as the map is written.
+ * </p>
+ */
+public final class FieldProjection {
+
+    private final Set<String> includes;
+    private final Set<String> excludes;
+    private final boolean omitDefaults;
+    private final Set<String> includeContextKeys;
+    private final Set<String> excludeContextKeys;
+
+    private FieldProjection(final Set<String> includes, final Set<String> excludes, final boolean omitDefaults,
+            final Set<String> includeContextKeys, final Set<String> excludeContextKeys) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.omitDefaults = omitDefaults;
+        this.includeContextKeys = includeContextKeys;
+        this.excludeContextKeys = excludeContextKeys;
+    }
+
+    /**
+     * @param includeFields comma separated names of the only fields to write, empty for all
+     * @param excludeFields comma separated names of fields not to write
+     * @param omitDefaults whether to leave out fields whose value is empty or a default, see {@link #isDefault(Object)}
+     * @param includeContextKeys comma separated context map keys, the only ones to write, empty for all
+     * @param excludeContextKeys comma separated context map keys not to write
+     * @return a projection, or null if none of the options is set
+     */
+    static FieldProjection create(final String includeFields, final String excludeFields, final boolean omitDefaults,
+            final String includeContextKeys, final String excludeContextKeys) {
+        final Set<String> includes = splitFields(includeFields);
+        final Set<String> excludes = splitFields(excludeFields);
+        final Set<String> includeKeys = splitFields(includeContextKeys);
+        final Set<String> excludeKeys = splitFields(excludeContextKeys);
+        if (includes.isEmpty() && excludes.isEmpty() && !omitDefaults && includeKeys.isEmpty()
+                && excludeKeys.isEmpty()) {
+            return null;
+        }
+        return new FieldProjection(includes, excludes, omitDefaults, includeKeys, excludeKeys);
+    }
+
+    private static Set<String> splitFields(final String fields) {
+        if (fields == null) {
+            return Collections.emptySet();
+        }
+        final Set<String> result = new HashSet<>();
+        for (final String field : fields.split(",")) {
+            final String trimmed = field.trim();
+            if (!trimmed.isEmpty()) {
+                result.add(trimmed);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param name a field's name as log4j writes it
+     * @return whether the field is written at all
+     */
+    boolean includes(final String name) {
+        return (includes.isEmpty() || includes.contains(name)) && !excludes.contains(name);
+    }
+
+    boolean isOmitDefaults() {
+        return omitDefaults;
+    }
+
+    /**
+     * @return whether some context map keys are left out
+     */
+    boolean hasContextKeyFilter() {
+        return !includeContextKeys.isEmpty() || !excludeContextKeys.isEmpty();
+    }
+
+    /**
+     * @param key a context map key
+     * @return whether the entry is written
+     */
+    boolean includesContextKey(final String key) {
+        return (includeContextKeys.isEmpty() || includeContextKeys.contains(key)) && !excludeContextKeys.contains(key);
+    }
+
+    /**
+     * @return whether the value is left out with {@code omitDefaults}: null, false, zero, an empty string, or an
+     * empty map, collection, array or context stack
+     */
+    static boolean isDefault(final Object value) {
+        if (value == null || Boolean.FALSE.equals(value)) {
+            return true;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue() == 0;
+        }
+        if (value instanceof CharSequence) {
+            return ((CharSequence) value).length() == 0;
+        }
+        if (value instanceof ReadOnlyStringMap) {
+            return ((ReadOnlyStringMap) value).isEmpty();
+        }
+        if (value instanceof Map) {
+            return ((Map<?, ?>) value).isEmpty();
+        }
+        if (value instanceof Collection) {
+            return ((Collection<?>) value).isEmpty();
+        }
+        if (value instanceof ContextStack) {
+            return ((ContextStack) value).getDepth() == 0;
+        }
+        return value.getClass().isArray() && Array.getLength(value) == 0;
+    }
+}
@@ -0,0 +1,130 @@
+package org.apache.logging.log4j.core.layout;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.apache.logging.log4j.util.StringBuilders;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Writes an event's {@code message} field without turning the message into a String first, if the message is
+ * {@link StringBuilderFormattable}. The message formats itself into a per-thread {@link StringBuilder}, whose
+ * characters the generator escapes straight into its output buffer. Other messages are written by the wrapped
+ * property writer, from {@link Message#getFormattedMessage()}, unless they are cut to the layout's
+ * {@link FieldLimits}.
+ */
+final class FormattableMessagePropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadLocal<Buffer> buffers = new ThreadLocal<>();
+
+    private final BeanPropertyWriter delegate;
+    private final int maxLength;
+
+    /**
+     * @param delegate the {@code message} property
+     * @param maxLength the most characters to write, 0 for all
+     */
+    FormattableMessagePropertyWriter(final BeanPropertyWriter delegate, final int maxLength) {
+        super(delegate);
+        this.delegate = delegate;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final Message message = ((LogEvent) bean).getMessage();
+        if (message == null || !(message instanceof StringBuilderFormattable) && maxLength == 0) {
+            delegate.serializeAsField(bean, gen, prov);
+            return;
+        }
+        gen.writeFieldName(_name);
+        writeValue(message, gen, prov);
+    }
+
+    @Override
+    public void serializeAsElement(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final Message message = ((LogEvent) bean).getMessage();
+        if (message == null || !(message instanceof StringBuilderFormattable) && maxLength == 0) {
+            delegate.serializeAsElement(bean, gen, prov);
+            return;
+        }
+        writeValue(message, gen, prov);
+    }
+
+    private void writeValue(final Message message, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        if (!(message instanceof StringBuilderFormattable)) {
+            final String text = message.getFormattedMessage();
+            if (text == null) {
+                gen.writeNull();
+                return;
+            }
+            final int length = FieldLimits.cutLength(text, maxLength);
+            if (length < text.length()) {
+                FieldLimits.markTruncated(prov);
+                gen.writeString(text.substring(0, length));
+            } else {
+                gen.writeString(text);
+            }
+            return;
+        }
+        final Buffer buffer = Buffer.acquire();
+        try {
+            ((StringBuilderFormattable) message).formatTo(buffer.text);
+            final int length = FieldLimits.cutLength(buffer.text, maxLength);
+            if (length < buffer.text.length()) {
+                FieldLimits.markTruncated(prov);
+            }
+            if (buffer.chars.length < length) {
+                buffer.chars = new char[Math.max(length, buffer.chars.length << 1)];
+            }
+            buffer.text.getChars(0, length, buffer.chars, 0);
+            gen.writeString(buffer.chars, 0, length);
+        } finally {
+            buffer.release();
+        }
+    }
+
+    private static final class Buffer {
+
+        final StringBuilder text = new StringBuilder(Constants.INITIAL_REUSABLE_MESSAGE_SIZE);
+        char[] chars = new char[Constants.INITIAL_REUSABLE_MESSAGE_SIZE];
+        boolean inUse;
+
+        static Buffer acquire() {
+            Buffer buffer = null;
+            if (Constants.ENABLE_THREADLOCALS) {
+                buffer = buffers.get();
+                if (buffer == null) {
+                    buffer = new Buffer();
+                    buffers.set(buffer);
+                } else if (buffer.inUse) {
+                    // a message whose parameters log while they are being formatted
+                    buffer = null;
+                }
+            }
+            if (buffer == null) {
+                buffer = new Buffer();
+            }
+            buffer.inUse = true;
+            return buffer;
+        }
+
+        void release() {
+            StringBuilders.trimToMaxSize(text, Constants.MAX_REUSABLE_MESSAGE_SIZE);
+            text.setLength(0);
+            if (chars.length > Constants.MAX_REUSABLE_MESSAGE_SIZE) {
+                chars = new char[Constants.MAX_REUSABLE_MESSAGE_SIZE];
+            }
+            inUse = false;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * The local host name for {@link ExtendedJsonAdapter}, resolved once per class loader on a background thread, so that
+ * slow or broken reverse DNS does not hold up building a layout or reconfiguring.
+ * <p>
+ * Until the resolution finishes, {@link #get()} returns a name found without DNS: the {@code HOSTNAME} or
+ * {@code COMPUTERNAME} environment variable, {@code /etc/hostname}, or {@code localhost}. The resolved name replaces it
+ * once it arrives; if the resolution fails, the fallback is kept.
+ * </p>
+ */
+final class HostName {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final Path ETC_HOSTNAME = Paths.get("/etc/hostname");
+
+    private static volatile String name = fallback();
+
+    static {
+        final Thread resolver = new Thread("ExtendedJsonLayout-HostName") {
+            @Override
+            public void run() {
+                try {
+                    name = InetAddress.getLocalHost().getHostName();
+                } catch (final UnknownHostException | SecurityException e) {
+                    LOGGER.warn("Could not resolve the host name, using {}", name, e);
+                }
+            }
+        };
+        resolver.setDaemon(true);
+        resolver.start();
+    }
+
+    private HostName() {
+    }
+
+    /**
+     * @return the resolved host name, or the fallback while it is being resolved
+     */
+    static String get() {
+        return name;
+    }
+
+    private static String fallback() {
+        for (final String variable : new String[] { "HOSTNAME", "COMPUTERNAME" }) {
+            final String value = System.getenv(variable);
+            if (value != null && !value.trim().isEmpty()) {
+                return value.trim();
+            }
+        }
+        try {
+            if (Files.isReadable(ETC_HOSTNAME)) {
+                final List<String> lines = Files.readAllLines(ETC_HOSTNAME, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && !lines.get(0).trim().isEmpty()) {
+                    return lines.get(0).trim();
+                }
+            }
+        } catch (final IOException | SecurityException e) {
+            LOGGER.debug("Could not read {}", ETC_HOSTNAME, e);
+        }
+        return "localhost";
+    }
+}
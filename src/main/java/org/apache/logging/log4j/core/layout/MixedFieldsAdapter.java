@@ -0,0 +1,77 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+/**
+ * Lets {@link ExtendedJsonLayout} drive an {@link ExtendedJson} adapter through the {@link EventExtendedJson}
+ * interface: the entries of its map are written for every event, or, for a {@link StaticExtendedJson}, the
+ * pre-encoded JSON of the map.
+ */
+final class MixedFieldsAdapter implements EventExtendedJson {
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final ExtendedJson adapter;
+    private final ObjectWriter objectWriter;
+    private final FieldNames names;
+    private volatile StaticMixedFields staticMixedFields;
+
+    /**
+     * @param adapter the map based adapter
+     * @param objectWriter the layout's writer, used to pre-encode the fields of a {@link StaticExtendedJson}, or null
+     * if the layout does not write text and the fields must be written one by one
+     * @param names the layout's field names, or null
+     */
+    MixedFieldsAdapter(final ExtendedJson adapter, final ObjectWriter objectWriter, final FieldNames names) {
+        this.adapter = adapter;
+        this.objectWriter = objectWriter;
+        this.names = names;
+        if (objectWriter != null && adapter instanceof StaticExtendedJson) {
+            try {
+                staticMixedFields = StaticMixedFields.encode(objectWriter, adapter.getMixedFields(), names);
+            } catch (final IOException e) {
+                LOGGER.error("Could not encode the static fields of {}", adapter.getClass().getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public void registerFields(final ExtendedJsonFields fields) {
+        // the map's keys are only known once it is returned
+    }
+
+    @Override
+    public void writeFields(final LogEvent event, final ExtendedJsonFieldWriter writer) throws IOException {
+        final Map<String, Object> fields = adapter.getMixedFields();
+        if (objectWriter != null && adapter instanceof StaticExtendedJson) {
+            writer.writeRaw(getStaticMixedFields(fields).getJson());
+            return;
+        }
+        for (final Entry<String, Object> entry : fields.entrySet()) {
+            if (entry.getValue() != null) {
+                writer.writeObject(FieldNames.map(names, entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the fields as pre-encoded JSON, encoding them again only if the adapter has started returning a
+     * different map.
+     */
+    private StaticMixedFields getStaticMixedFields(final Map<String, Object> fields) throws IOException {
+        StaticMixedFields encoded = staticMixedFields;
+        if (encoded == null || !encoded.isFor(fields)) {
+            encoded = StaticMixedFields.encode(objectWriter, fields, names);
+            staticMixedFields = encoded;
+        }
+        return encoded;
+    }
+}
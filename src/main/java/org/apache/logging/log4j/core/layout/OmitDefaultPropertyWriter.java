@@ -0,0 +1,98 @@
+package org.apache.logging.log4j.core.layout;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Leaves an event property out when its value is empty or a default, see {@link FieldProjection#isDefault(Object)}.
+ * <p>
+ * Which check applies is decided from the property's getter when the layout is built: the {@link LogEvent} getters
+ * returning a primitive are called directly and their value compared with zero or false, and written without the
+ * boxing a generic read would take; any other property is read once for {@link FieldProjection#isDefault(Object)}
+ * and, if it is not a default, written by the wrapped writer.
+ * </p>
+ */
+final class OmitDefaultPropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int REFERENCE = 0;
+    private static final int TIME_MILLIS = 1;
+    private static final int NANO_TIME = 2;
+    private static final int THREAD_ID = 3;
+    private static final int THREAD_PRIORITY = 4;
+    private static final int END_OF_BATCH = 5;
+
+    private final BeanPropertyWriter delegate;
+
+    private final int getter;
+
+    OmitDefaultPropertyWriter(final BeanPropertyWriter delegate) {
+        super(delegate);
+        this.delegate = delegate;
+        this.getter = getter(delegate);
+    }
+
+    private static int getter(final BeanPropertyWriter property) {
+        if (!property.getType().isPrimitive() || property.getMember() == null) {
+            return REFERENCE;
+        }
+        switch (property.getMember().getName()) {
+        case "getTimeMillis":
+            return TIME_MILLIS;
+        case "getNanoTime":
+            return NANO_TIME;
+        case "getThreadId":
+            return THREAD_ID;
+        case "getThreadPriority":
+            return THREAD_PRIORITY;
+        case "isEndOfBatch":
+            return END_OF_BATCH;
+        default:
+            return REFERENCE;
+        }
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        switch (getter) {
+        case TIME_MILLIS:
+            writeNonZero(((LogEvent) bean).getTimeMillis(), gen);
+            break;
+        case NANO_TIME:
+            writeNonZero(((LogEvent) bean).getNanoTime(), gen);
+            break;
+        case THREAD_ID:
+            writeNonZero(((LogEvent) bean).getThreadId(), gen);
+            break;
+        case THREAD_PRIORITY:
+            final int priority = ((LogEvent) bean).getThreadPriority();
+            if (priority != 0) {
+                gen.writeFieldName(_name);
+                gen.writeNumber(priority);
+            }
+            break;
+        case END_OF_BATCH:
+            if (((LogEvent) bean).isEndOfBatch()) {
+                gen.writeFieldName(_name);
+                gen.writeBoolean(true);
+            }
+            break;
+        default:
+            if (!FieldProjection.isDefault(get(bean))) {
+                delegate.serializeAsField(bean, gen, prov);
+            }
+        }
+    }
+
+    private void writeNonZero(final long value, final JsonGenerator gen) throws Exception {
+        if (value != 0) {
+            gen.writeFieldName(_name);
+            gen.writeNumber(value);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.config.Node;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginBuilderFactory;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.util.Log4jThreadFactory;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.status.StatusLogger;
+
+/**
+ * Suppresses repeated events for an {@link ExtendedJsonLayout}, which is configured with it as a nested
+ * {@code <RepeatSuppression windowMillis="10000" limit="5"/>} element.
+ * <p>
+ * Events are fingerprinted by logger, level, message pattern and throwable class. Within a window of
+ * {@code windowMillis} from the first event of a fingerprint, the first {@code limit} events are encoded in full and
+ * the rest are not serialized at all. Each window that suppressed events is followed by one event with a
+ * {@code repeatCount} field holding their number: the fingerprint's first event after the window if it comes as the
+ * window ends, otherwise a summary event of the fingerprint's logger and level, with the message pattern as its
+ * message, written to the destination of the suppressed events when the window ends. A window is also summed up
+ * when a new fingerprint evicts it, and when the layout is stopped.
+ * </p>
+ * <p>
+ * Fingerprints are kept in a fixed table of {@code maxFingerprints} slots updated with compare-and-set, so logging
+ * threads never lock. A new fingerprint takes a free slot near its hash or evicts the oldest window there. Events
+ * suppressed by other threads while a window is being summed up may be left out of its count.
+ * </p>
+ * <p>
+ * The windows end on a daemon thread shared by all suppressions, which is only scheduled for windows that suppressed
+ * an event. Window times are event times, so the summary comes {@code windowMillis} after the window's first event
+ * was logged. Stopping the layout cancels the window ends still pending, and a summary due for a destination that has
+ * been stopped meanwhile is dropped.
+ * </p>
+ */
+@Plugin(name = "RepeatSuppression", category = Node.CATEGORY, printObject = true)
+public final class RepeatSuppression {
+
+    /**
+     * The name of the count field, before the layout's {@link FieldNames} are applied.
+     */
+    static final String REPEAT_COUNT_FIELD = "repeatCount";
+
+    /**
+     * How many neighbouring slots a fingerprint may live in.
+     */
+    private static final int WAYS = 4;
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private final long windowMillis;
+    private final long limit;
+    private final AtomicReferenceArray<Window> windows;
+    private final int mask;
+
+    private RepeatSuppression(final long windowMillis, final long limit, final int maxFingerprints) {
+        this.windowMillis = windowMillis;
+        this.limit = limit;
+        int size = WAYS;
+        while (size < maxFingerprints) {
+            size <<= 1;
+        }
+        this.windows = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    @PluginBuilderFactory
+    public static Builder newBuilder() {
+        return new Builder();
+    }
+
+    /**
+     * Counts the event against its fingerprint's window.
+     *
+     * @param event the event about to be encoded
+     * @param destination where the event is to be written, and the summary of its window if it is suppressed
+     * @param writer writes the summaries of windows that end without an event to carry their count
+     * @return -1 if the event is to be suppressed, else the number of events suppressed in the fingerprint's
+     * previous window, to be written as its {@code repeatCount}, or 0
+     */
+    long check(final LogEvent event, final ByteBufferDestination destination, final SummaryWriter writer) {
+        final Message message = event.getMessage();
+        final String pattern = message == null ? null : message.getFormat();
+        final Throwable thrown = event.getThrown();
+        final String thrownClass = thrown == null ? null : thrown.getClass().getName();
+        final String loggerName = event.getLoggerName();
+        final Level level = event.getLevel();
+        final int hash = hash(loggerName, level, pattern, thrownClass);
+        final long time = event.getTimeMillis();
+        for (;;) {
+            int victim = -1;
+            Window oldest = null;
+            for (int probe = 0; probe < WAYS; probe++) {
+                final int index = (hash + probe) & mask;
+                final Window window = windows.get(index);
+                if (window == null) {
+                    if (victim < 0 || oldest != null) {
+                        victim = index;
+                        oldest = null;
+                    }
+                    continue;
+                }
+                if (window.matches(hash, loggerName, level, pattern, thrownClass)) {
+                    if (time - window.start < windowMillis) {
+                        final long count = window.count.incrementAndGet();
+                        if (count <= limit) {
+                            return 0;
+                        }
+                        if (count == limit + 1) {
+                            window.destination = destination;
+                            scheduleEnd(window, writer, window.start + windowMillis - time);
+                        }
+                        return -1;
+                    }
+                    if (windows.compareAndSet(index, window,
+                            new Window(index, hash, loggerName, level, pattern, thrownClass, time))) {
+                        return Math.max(window.count.get() - limit, 0);
+                    }
+                    victim = -2;
+                    break;
+                }
+                if ((victim < 0 || oldest != null) && (oldest == null || window.start < oldest.start)) {
+                    victim = index;
+                    oldest = window;
+                }
+            }
+            if (victim >= 0 && windows.compareAndSet(victim, oldest,
+                    new Window(victim, hash, loggerName, level, pattern, thrownClass, time))) {
+                if (oldest != null) {
+                    summarize(oldest, writer, time, false);
+                }
+                return 0;
+            }
+            // another thread changed the slots, look again
+        }
+    }
+
+    /**
+     * Ends every window right away: cancels the ends still pending on the timer and sums up the windows that have
+     * suppressed events, so that their counts are written before the appender closes. Events after this start new
+     * windows.
+     *
+     * @param writer writes the summaries
+     */
+    void stop(final SummaryWriter writer) {
+        final long now = System.currentTimeMillis();
+        for (int index = 0; index < windows.length(); index++) {
+            final Window window = windows.get(index);
+            if (window != null && windows.compareAndSet(index, window, null)) {
+                final ScheduledFuture<?> end = window.end;
+                if (end != null) {
+                    end.cancel(false);
+                }
+                summarize(window, writer, now, false);
+            }
+        }
+    }
+
+    private void scheduleEnd(final Window window, final SummaryWriter writer, final long delayMillis) {
+        try {
+            window.end = Timer.EXECUTOR.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // unless the window was summed up already, when it was replaced
+                    if (windows.compareAndSet(window.index, window, null)) {
+                        summarize(window, writer, window.start + windowMillis, true);
+                    }
+                }
+            }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+        } catch (final RuntimeException e) {
+            // the window is still summed up by the next event of its fingerprint or when it is evicted
+            LOGGER.error("Unable to schedule the end of a RepeatSuppression window", e);
+        }
+    }
+
+    /**
+     * Writes the summary of a window taken out of the table, if it suppressed any events.
+     */
+    private void summarize(final Window window, final SummaryWriter writer, final long time, final boolean flush) {
+        final long suppressed = window.count.get() - limit;
+        final ByteBufferDestination destination = window.destination;
+        if (suppressed <= 0 || destination == null) {
+            return;
+        }
+        // @formatter:off
+        final LogEvent summary = Log4jLogEvent.newBuilder()
+                .setLoggerName(window.loggerName)
+                .setLevel(window.level)
+                .setMessage(new SimpleMessage(window.pattern))
+                .setTimeMillis(time)
+                .setEndOfBatch(flush)
+                .build();
+        // @formatter:on
+        try {
+            writer.writeSummary(summary, suppressed, destination, flush);
+        } catch (final RuntimeException e) {
+            LOGGER.error("Unable to write the summary of {} suppressed events of logger {}", suppressed,
+                    window.loggerName, e);
+        }
+    }
+
+    private static int hash(final String loggerName, final Level level, final String pattern,
+            final String thrownClass) {
+        int h = loggerName == null ? 0 : loggerName.hashCode();
+        h = 31 * h + (level == null ? 0 : level.intLevel());
+        h = 31 * h + (pattern == null ? 0 : pattern.hashCode());
+        h = 31 * h + (thrownClass == null ? 0 : thrownClass.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean same(final Object a, final Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    @Override
+    public String toString() {
+        return "RepeatSuppression[windowMillis=" + windowMillis + ", limit=" + limit + ", maxFingerprints="
+                + windows.length() + "]";
+    }
+
+    /**
+     * Writes the events that sum up windows which ended without an event of their fingerprint to carry the count.
+     */
+    interface SummaryWriter {
+
+        /**
+         * @param summary the event standing for the suppressed events
+         * @param repeatCount how many events were suppressed
+         * @param destination where the suppressed events would have gone
+         * @param flush whether the summary is written outside of any append, so that nothing else flushes it
+         */
+        void writeSummary(LogEvent summary, long repeatCount, ByteBufferDestination destination, boolean flush);
+    }
+
+    /**
+     * A fingerprint's current window. The fields other than the count and the destination never change; a new window
+     * is a new instance.
+     */
+    private static final class Window {
+
+        final int index;
+        final int hash;
+        final String loggerName;
+        final Level level;
+        final String pattern;
+        final String thrownClass;
+        final long start;
+        final AtomicLong count = new AtomicLong(1);
+        /** Set by the thread that suppresses the window's first event. */
+        volatile ByteBufferDestination destination;
+        /** The window's end on the timer, once scheduled. */
+        volatile ScheduledFuture<?> end;
+
+        Window(final int index, final int hash, final String loggerName, final Level level, final String pattern,
+                final String thrownClass, final long start) {
+            this.index = index;
+            this.hash = hash;
+            this.loggerName = loggerName;
+            this.level = level;
+            this.pattern = pattern;
+            this.thrownClass = thrownClass;
+            this.start = start;
+        }
+
+        boolean matches(final int otherHash, final String otherLoggerName, final Level otherLevel,
+                final String otherPattern, final String otherThrownClass) {
+            return hash == otherHash && level == otherLevel && same(loggerName, otherLoggerName)
+                    && same(pattern, otherPattern) && same(thrownClass, otherThrownClass);
+        }
+    }
+
+    /**
+     * Holds the thread that ends the windows, created with the first window that suppresses an event and gone after
+     * a minute without any window to end.
+     */
+    private static final class Timer {
+
+        static final ScheduledThreadPoolExecutor EXECUTOR = create();
+
+        private static ScheduledThreadPoolExecutor create() {
+            final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                    Log4jThreadFactory.createDaemonThreadFactory("ExtendedJsonLayout-RepeatSuppression"));
+            executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+            executor.allowCoreThreadTimeOut(true);
+            // the window ends cancelled by a stopping layout do not wait out their delay
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    public static class Builder implements org.apache.logging.log4j.core.util.Builder<RepeatSuppression> {
+
+        @PluginBuilderAttribute
+        private long windowMillis = 10000;
+
+        @PluginBuilderAttribute
+        private int limit = 5;
+
+        @PluginBuilderAttribute
+        private int maxFingerprints = 1024;
+
+        @Override
+        public RepeatSuppression build() {
+            return new RepeatSuppression(Math.max(windowMillis, 1), Math.max(limit, 1), Math.max(maxFingerprints, 1));
+        }
+
+        public long getWindowMillis() {
+            return windowMillis;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        public int getMaxFingerprints() {
+            return maxFingerprints;
+        }
+
+        /**
+         * @param windowMillis how long a fingerprint's window lasts, defaults to 10000
+         * @return this builder
+         */
+        public Builder setWindowMillis(final long windowMillis) {
+            this.windowMillis = windowMillis;
+            return this;
+        }
+
+        /**
+         * @param limit how many events of a fingerprint are encoded per window, at least 1, defaults to 5
+         * @return this builder
+         */
+        public Builder setLimit(final int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * @param maxFingerprints how many fingerprints are tracked at most, defaults to 1024
+         * @return this builder
+         */
+        public Builder setMaxFingerprints(final int maxFingerprints) {
+            this.maxFingerprints = maxFingerprints;
+            return this;
+        }
+    }
+}
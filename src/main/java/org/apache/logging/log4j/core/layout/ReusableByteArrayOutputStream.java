@@ -0,0 +1,200 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * A growable byte array {@link OutputStream} that is reset and reused between events instead of being
+ * reallocated, so the bytes Jackson produces can be handed straight to a {@link ByteBufferDestination}.
+ * <p>
+ * Instances are not thread-safe; {@link ExtendedJsonLayout} keeps one per thread and marks it as in use while an
+ * event is being serialized so that a nested logging call on the same thread gets its own stream. The buffer is
+ * sized from the layout's {@link EventSizeEstimate} and shrunk again when it outgrows the layout's retention limit.
+ * </p>
+ * <p>
+ * The stream also keeps the thread's Jackson generator writing into it and the {@link ExtendedJsonWrapper} handed to
+ * Jackson, so neither is created again for every event.
+ * </p>
+ */
+final class ReusableByteArrayOutputStream extends OutputStream {
+
+    private byte[] buf;
+    private int count;
+    private boolean inUse;
+    private int released;
+    private int limit;
+    private boolean limitExceeded;
+    private JsonFactory generatorFactory;
+    private JsonGenerator generator;
+    private final ExtendedJsonWrapper wrapper = new ExtendedJsonWrapper(null, null, 0);
+
+    ReusableByteArrayOutputStream(final int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        checkLimit(count + 1);
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        checkLimit(count + len);
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void checkLimit(final int size) throws IOException {
+        if (limit > 0 && size > limit) {
+            limitExceeded = true;
+            throw new LimitExceededException(limit);
+        }
+    }
+
+    private void ensureCapacity(final int minCapacity) {
+        if (minCapacity > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, minCapacity));
+        }
+    }
+
+    /**
+     * Discards the bytes written so far, keeping the backing array for the next event.
+     */
+    void reset() {
+        count = 0;
+        limitExceeded = false;
+    }
+
+    /**
+     * Makes writes fail with a {@link LimitExceededException} once the stream would hold more than {@code limit}
+     * bytes, until the stream is reset or released.
+     *
+     * @param limit the most bytes to hold, 0 for no limit
+     */
+    void setLimit(final int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return whether a write has failed because of the limit since the stream was last reset
+     */
+    boolean isLimitExceeded() {
+        return limitExceeded;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Copies the bytes written so far into the destination in a single call.
+     *
+     * @param destination the destination to write to
+     */
+    void writeTo(final ByteBufferDestination destination) {
+        destination.writeBytes(buf, 0, count);
+    }
+
+    /**
+     * @param factory the factory of the writer the event is written with
+     * @return a UTF-8 generator writing into this stream, kept for the next event written with the same factory; the
+     * caller flushes it after each event
+     * @throws IOException if the factory fails to create a generator
+     */
+    JsonGenerator getGenerator(final JsonFactory factory) throws IOException {
+        if (generator == null || generatorFactory != factory) {
+            generator = factory.createGenerator(this, JsonEncoding.UTF8);
+            generatorFactory = factory;
+        }
+        return generator;
+    }
+
+    /**
+     * Drops the generator after a failed write, which may have left it in the middle of a value or holding bytes
+     * that were never flushed.
+     */
+    void discardGenerator() {
+        generator = null;
+        generatorFactory = null;
+    }
+
+    /**
+     * @return the wrapper for the event being written, emptied again when the stream is released
+     */
+    ExtendedJsonWrapper getWrapper(final LogEvent event, final EventExtendedJson fields, final long repeatCount) {
+        return wrapper.set(event, fields, repeatCount);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    /**
+     * Claims this stream for the current event and makes room for an event of the estimated size, so a large event
+     * grows the buffer once instead of doubling it several times.
+     *
+     * @param estimate the layout's event size estimate
+     * @return false if the stream is already being used further up the call stack
+     */
+    boolean acquire(final EventSizeEstimate estimate) {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        count = 0;
+        limit = 0;
+        limitExceeded = false;
+        final int capacity = estimate.capacity();
+        if (capacity > buf.length) {
+            buf = new byte[capacity];
+        }
+        return true;
+    }
+
+    /**
+     * Records the size of the event just written and drops the buffer if it has grown past what a thread may keep,
+     * so that an occasional huge event does not pin its buffer to the thread.
+     *
+     * @param estimate the layout's event size estimate
+     */
+    void release(final EventSizeEstimate estimate) {
+        estimate.record(count, ++released);
+        if (buf.length > estimate.getMaximum()) {
+            buf = new byte[estimate.capacity()];
+        }
+        // don't keep the last event reachable from the thread
+        wrapper.set(null, null, 0);
+        inUse = false;
+    }
+
+    /**
+     * Thrown by writes past the stream's limit. Jackson may wrap it, so callers check {@link #isLimitExceeded()}.
+     */
+    static final class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitExceededException(final int limit) {
+            super("Event exceeds " + limit + " bytes");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.Writer;
+
+/**
+ * A {@link Writer} over a {@link StringBuilder} that is reset and reused between events, the character counterpart
+ * of {@link ReusableByteArrayOutputStream} for {@link ExtendedJsonLayout#toSerializable(org.apache.logging.log4j.core.LogEvent)}.
+ * <p>
+ * Instances are not thread-safe and follow the same acquire/release protocol as {@link ReusableByteArrayOutputStream}.
+ * </p>
+ */
+final class ReusableStringWriter extends Writer {
+
+    private StringBuilder builder;
+    private boolean inUse;
+    private int released;
+
+    ReusableStringWriter(final int initialCapacity) {
+        this.builder = new StringBuilder(initialCapacity);
+    }
+
+    @Override
+    public void write(final int c) {
+        builder.append((char) c);
+    }
+
+    @Override
+    public void write(final char[] cbuf, final int off, final int len) {
+        builder.append(cbuf, off, len);
+    }
+
+    @Override
+    public void write(final String str) {
+        builder.append(str);
+    }
+
+    @Override
+    public void write(final String str, final int off, final int len) {
+        builder.append(str, off, off + len);
+    }
+
+    @Override
+    public void flush() {
+        // nothing to flush
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    int capacity() {
+        return builder.capacity();
+    }
+
+    @Override
+    public String toString() {
+        return builder.toString();
+    }
+
+    /**
+     * Claims this writer for the current event and makes room for an event of the estimated size.
+     *
+     * @param estimate the layout's event size estimate
+     * @return false if the writer is already being used further up the call stack
+     */
+    boolean acquire(final EventSizeEstimate estimate) {
+        if (inUse) {
+            return false;
+        }
+        inUse = true;
+        builder.setLength(0);
+        builder.ensureCapacity(estimate.capacity());
+        return true;
+    }
+
+    /**
+     * Records the size of the event just written and drops the builder if it has grown past what a thread may keep.
+     *
+     * @param estimate the layout's event size estimate
+     */
+    void release(final EventSizeEstimate estimate) {
+        estimate.record(builder.length(), ++released);
+        if (builder.capacity() > estimate.getMaximum()) {
+            builder = new StringBuilder(estimate.capacity());
+        }
+        inUse = false;
+    }
+}
@@ -0,0 +1,330 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.core.impl.ExtendedStackTraceElement;
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+import org.apache.logging.log4j.util.Strings;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Writes an event's {@code thrown} field with fewer stack frames than log4j would. The fields are those log4j's own
+ * mixins write, in the same order and left out when empty, so that readers of the JSON do not need to know whether
+ * trimming is on; trimming only adds the {@code omitted} elements and the {@code omittedCauses} field described below.
+ * <ul>
+ * <li>{@code maxFrames} keeps at most that many frames per throwable.</li>
+ * <li>{@code maxCauses} keeps at most that many levels of {@code cause} below the logged throwable.</li>
+ * <li>Frames of classes outside {@code includePackages}, or inside {@code excludePackages}, are left out. Each run of
+ * left out frames becomes a single {@code {"omitted" : N}} element, or a {@code "... N frames omitted"} line when the
+ * stack trace is written as a string.</li>
+ * <li>With {@code foldCommonFrames}, suppressed exceptions leave out the frames they share with the throwable they
+ * were added to, as log4j already does for causes.</li>
+ * </ul>
+ */
+public final class StackTraceTrimmer {
+
+    private static final SerializedString COMMON_ELEMENT_COUNT = new SerializedString("commonElementCount");
+    private static final SerializedString LOCALIZED_MESSAGE = new SerializedString("localizedMessage");
+    private static final SerializedString MESSAGE = new SerializedString("message");
+    private static final SerializedString NAME = new SerializedString("name");
+    private static final SerializedString CAUSE = new SerializedString("cause");
+    private static final SerializedString SUPPRESSED = new SerializedString("suppressed");
+    private static final SerializedString EXTENDED_STACK_TRACE = new SerializedString("extendedStackTrace");
+    private static final SerializedString OMITTED_CAUSES = new SerializedString("omittedCauses");
+    private static final SerializedString OMITTED = new SerializedString("omitted");
+    private static final SerializedString CLASS = new SerializedString("class");
+    private static final SerializedString METHOD = new SerializedString("method");
+    private static final SerializedString FILE = new SerializedString("file");
+    private static final SerializedString LINE = new SerializedString("line");
+    private static final SerializedString EXACT = new SerializedString("exact");
+    private static final SerializedString LOCATION = new SerializedString("location");
+    private static final SerializedString VERSION = new SerializedString("version");
+
+    private static final char EOL = '\n';
+
+    private final int maxFrames;
+    private final int maxCauses;
+    private final String[] includePackages;
+    private final String[] excludePackages;
+    private final boolean foldCommonFrames;
+    private final boolean stacktraceAsString;
+
+    private StackTraceTrimmer(final int maxFrames, final int maxCauses, final String[] includePackages,
+            final String[] excludePackages, final boolean foldCommonFrames, final boolean stacktraceAsString) {
+        this.maxFrames = maxFrames;
+        this.maxCauses = maxCauses;
+        this.includePackages = includePackages;
+        this.excludePackages = excludePackages;
+        this.foldCommonFrames = foldCommonFrames;
+        this.stacktraceAsString = stacktraceAsString;
+    }
+
+    /**
+     * @param maxFrames the most frames to keep per throwable, 0 for all
+     * @param maxCauses the most levels of cause to keep, 0 for all
+     * @param includePackages comma separated class name prefixes whose frames are kept, empty for all
+     * @param excludePackages comma separated class name prefixes whose frames are left out
+     * @param foldCommonFrames whether suppressed exceptions leave out the frames shared with their enclosing trace
+     * @param stacktraceAsString whether the layout writes the stack trace as a string
+     * @return a trimmer, or null if none of the options is set
+     */
+    static StackTraceTrimmer create(final int maxFrames, final int maxCauses, final String includePackages,
+            final String excludePackages, final boolean foldCommonFrames, final boolean stacktraceAsString) {
+        final String[] includes = splitPackages(includePackages);
+        final String[] excludes = splitPackages(excludePackages);
+        if (maxFrames <= 0 && maxCauses <= 0 && includes.length == 0 && excludes.length == 0 && !foldCommonFrames) {
+            return null;
+        }
+        return new StackTraceTrimmer(Math.max(maxFrames, 0), Math.max(maxCauses, 0), includes, excludes,
+                foldCommonFrames, stacktraceAsString);
+    }
+
+    private static String[] splitPackages(final String packages) {
+        final List<String> result = new ArrayList<>();
+        if (packages != null) {
+            for (final String pkg : packages.split(",")) {
+                final String trimmed = pkg.trim();
+                if (!trimmed.isEmpty()) {
+                    result.add(trimmed);
+                }
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Writes the value of the {@code thrown} field.
+     *
+     * @param proxy the event's throwable
+     * @param gen the generator, positioned where the value goes
+     */
+    void write(final ThrowableProxy proxy, final JsonGenerator gen) throws IOException {
+        writeProxy(proxy, null, 0, gen);
+    }
+
+    private void writeProxy(final ThrowableProxy proxy, final ExtendedStackTraceElement[] enclosing,
+            final int depth, final JsonGenerator gen) throws IOException {
+        final ExtendedStackTraceElement[] frames = proxy.getExtendedStackTrace();
+        final int folded = foldedFrames(frames, enclosing);
+        final int end = frames.length - folded;
+        final ThrowableProxy cause = proxy.getCauseProxy();
+        final boolean keepCause = cause != null && (maxCauses == 0 || depth < maxCauses);
+        gen.writeStartObject();
+        gen.writeFieldName(COMMON_ELEMENT_COUNT);
+        gen.writeNumber(proxy.getCommonElementCount() + folded);
+        writeNonEmpty(LOCALIZED_MESSAGE, proxy.getLocalizedMessage(), gen);
+        writeNonEmpty(MESSAGE, proxy.getMessage(), gen);
+        writeNonEmpty(NAME, proxy.getName(), gen);
+        if (keepCause) {
+            gen.writeFieldName(CAUSE);
+            writeProxy(cause, null, depth + 1, gen);
+        }
+        if (stacktraceAsString) {
+            writeSuppressed(proxy, frames, depth, gen);
+            final StringBuilder sb = new StringBuilder(Math.max(end, 1) * 80);
+            sb.append(proxy).append(EOL);
+            formatElements(sb, Strings.EMPTY, frames, end, 0);
+            formatSuppressed(sb, "\t", proxy, frames, depth);
+            formatCause(sb, Strings.EMPTY, cause, depth + 1);
+            gen.writeFieldName(EXTENDED_STACK_TRACE);
+            gen.writeString(sb.toString());
+        } else {
+            if (frames.length > 0) {
+                // even if all of them are folded, as log4j would still have written them
+                gen.writeFieldName(EXTENDED_STACK_TRACE);
+                gen.writeStartArray();
+                writeElements(frames, end, gen);
+                gen.writeEndArray();
+            }
+            writeSuppressed(proxy, frames, depth, gen);
+        }
+        if (cause != null && !keepCause) {
+            gen.writeFieldName(OMITTED_CAUSES);
+            gen.writeNumber(countCauses(cause));
+        }
+        gen.writeEndObject();
+    }
+
+    private void writeSuppressed(final ThrowableProxy proxy, final ExtendedStackTraceElement[] frames,
+            final int depth, final JsonGenerator gen) throws IOException {
+        final ThrowableProxy[] suppressed = proxy.getSuppressedProxies();
+        if (suppressed != null && suppressed.length > 0) {
+            gen.writeFieldName(SUPPRESSED);
+            gen.writeStartArray();
+            for (final ThrowableProxy s : suppressed) {
+                writeProxy(s, frames, depth, gen);
+            }
+            gen.writeEndArray();
+        }
+    }
+
+    private void writeElements(final ExtendedStackTraceElement[] frames, final int end, final JsonGenerator gen)
+            throws IOException {
+        int omitted = 0;
+        int written = 0;
+        for (int i = 0; i < end; i++) {
+            if (maxFrames > 0 && written == maxFrames) {
+                omitted += end - i;
+                break;
+            }
+            if (isOmitted(frames[i])) {
+                omitted++;
+                continue;
+            }
+            if (omitted > 0) {
+                writeOmitted(omitted, gen);
+                omitted = 0;
+            }
+            writeElement(frames[i], gen);
+            written++;
+        }
+        if (omitted > 0) {
+            writeOmitted(omitted, gen);
+        }
+    }
+
+    private static void writeOmitted(final int omitted, final JsonGenerator gen) throws IOException {
+        gen.writeStartObject();
+        gen.writeFieldName(OMITTED);
+        gen.writeNumber(omitted);
+        gen.writeEndObject();
+    }
+
+    private static void writeElement(final ExtendedStackTraceElement frame, final JsonGenerator gen)
+            throws IOException {
+        gen.writeStartObject();
+        writeNonEmpty(CLASS, frame.getClassName(), gen);
+        writeNonEmpty(METHOD, frame.getMethodName(), gen);
+        writeNonEmpty(FILE, frame.getFileName(), gen);
+        gen.writeFieldName(LINE);
+        gen.writeNumber(frame.getLineNumber());
+        gen.writeFieldName(EXACT);
+        gen.writeBoolean(frame.getExact());
+        writeNonEmpty(LOCATION, frame.getLocation(), gen);
+        writeNonEmpty(VERSION, frame.getVersion(), gen);
+        gen.writeEndObject();
+    }
+
+    private static void writeNonEmpty(final SerializableString name, final String value, final JsonGenerator gen)
+            throws IOException {
+        if (value != null && !value.isEmpty()) {
+            gen.writeFieldName(name);
+            gen.writeString(value);
+        }
+    }
+
+    // The string form is laid out like ThrowableProxy.getExtendedStackTraceAsString(): a header line, the frames,
+    // "... N more" for the frames shared with the enclosing trace, the suppressed exceptions one tab further in, then
+    // the causes. Trimmed frames and causes are replaced by "... N frames omitted" and "... N causes omitted" lines.
+
+    private void formatProxy(final StringBuilder sb, final String prefix, final String label,
+            final ThrowableProxy proxy, final ExtendedStackTraceElement[] enclosing, final int depth) {
+        final ExtendedStackTraceElement[] frames = proxy.getExtendedStackTrace();
+        final int folded = foldedFrames(frames, enclosing);
+        sb.append(prefix).append(label).append(proxy).append(EOL);
+        formatElements(sb, prefix, frames, frames.length - folded, proxy.getCommonElementCount() + folded);
+        formatSuppressed(sb, prefix + '\t', proxy, frames, depth);
+        formatCause(sb, prefix, proxy.getCauseProxy(), depth + 1);
+    }
+
+    private void formatSuppressed(final StringBuilder sb, final String prefix, final ThrowableProxy proxy,
+            final ExtendedStackTraceElement[] frames, final int depth) {
+        final ThrowableProxy[] suppressed = proxy.getSuppressedProxies();
+        if (suppressed != null) {
+            for (final ThrowableProxy s : suppressed) {
+                formatProxy(sb, prefix, "Suppressed: ", s, frames, depth);
+            }
+        }
+    }
+
+    private void formatCause(final StringBuilder sb, final String prefix, final ThrowableProxy cause,
+            final int depth) {
+        if (cause == null) {
+            return;
+        }
+        if (maxCauses > 0 && depth > maxCauses) {
+            sb.append(prefix).append("\t... ").append(countCauses(cause)).append(" causes omitted").append(EOL);
+            return;
+        }
+        formatProxy(sb, prefix, "Caused by: ", cause, null, depth);
+    }
+
+    private void formatElements(final StringBuilder sb, final String prefix, final ExtendedStackTraceElement[] frames,
+            final int end, final int commonCount) {
+        int omitted = 0;
+        int written = 0;
+        for (int i = 0; i < end; i++) {
+            if (maxFrames > 0 && written == maxFrames) {
+                omitted += end - i;
+                break;
+            }
+            if (isOmitted(frames[i])) {
+                omitted++;
+                continue;
+            }
+            if (omitted > 0) {
+                formatOmitted(sb, prefix, omitted);
+                omitted = 0;
+            }
+            sb.append(prefix).append("\tat ").append(frames[i]).append(EOL);
+            written++;
+        }
+        if (omitted > 0) {
+            formatOmitted(sb, prefix, omitted);
+        }
+        if (commonCount != 0) {
+            sb.append(prefix).append("\t... ").append(commonCount).append(" more").append(EOL);
+        }
+    }
+
+    private static void formatOmitted(final StringBuilder sb, final String prefix, final int omitted) {
+        sb.append(prefix).append("\t... ").append(omitted).append(" frames omitted").append(EOL);
+    }
+
+    private boolean isOmitted(final ExtendedStackTraceElement frame) {
+        final String className = frame.getClassName();
+        if (includePackages.length > 0 && !startsWithAny(className, includePackages)) {
+            return true;
+        }
+        return startsWithAny(className, excludePackages);
+    }
+
+    private static boolean startsWithAny(final String className, final String[] prefixes) {
+        for (final String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return how many trailing frames a suppressed exception shares with the trace it was added to
+     */
+    private int foldedFrames(final ExtendedStackTraceElement[] frames, final ExtendedStackTraceElement[] enclosing) {
+        if (!foldCommonFrames || enclosing == null) {
+            return 0;
+        }
+        int i = frames.length - 1;
+        int j = enclosing.length - 1;
+        while (i >= 0 && j >= 0
+                && frames[i].getStackTraceElement().equals(enclosing[j].getStackTraceElement())) {
+            i--;
+            j--;
+        }
+        return frames.length - 1 - i;
+    }
+
+    private static int countCauses(ThrowableProxy cause) {
+        int count = 0;
+        for (; cause != null; cause = cause.getCauseProxy()) {
+            count++;
+        }
+        return count;
+    }
+}
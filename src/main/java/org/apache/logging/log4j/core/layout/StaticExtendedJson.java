@@ -0,0 +1,15 @@
+package org.apache.logging.log4j.core.layout;
+
+/**
+ * An {@link ExtendedJson} whose mixed fields do not change from one event to the next, such as host, region or build
+ * information.
+ * <p>
+ * {@link ExtendedJsonLayout} serializes the map returned by {@link #getMixedFields()} once and splices the resulting
+ * JSON into every event instead of writing each entry again. To publish new values, return a new map instance; the
+ * layout encodes the fields again whenever the instance it gets back changes. The map is not compared with its
+ * encoded form, so changing it in place is not noticed and the old values go on being written.
+ * </p>
+ */
+public interface StaticExtendedJson extends ExtendedJson {
+
+}
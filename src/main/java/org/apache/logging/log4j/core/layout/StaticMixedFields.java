@@ -0,0 +1,101 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+
+/**
+ * The mixed fields of a {@link StaticExtendedJson}, already written out as the raw JSON that
+ * {@link ExtendedJsonSerializer} would have produced for them after the event's own fields, separators and
+ * indentation included.
+ */
+final class StaticMixedFields {
+
+    private final Map<String, Object> fields;
+    private final SerializableString json;
+
+    private StaticMixedFields(final Map<String, Object> fields, final SerializableString json) {
+        this.fields = fields;
+        this.json = json;
+    }
+
+    /**
+     * Encodes the fields with the layout's writer, so the fragment uses the same pretty printer and serializers as
+     * the events it is spliced into.
+     *
+     * @param writer the layout's object writer
+     * @param fields the adapter's mixed fields
+     * @param names the layout's field names, or null
+     * @return the encoded fields
+     * @throws IOException if Jackson cannot serialize one of the values
+     */
+    static StaticMixedFields encode(final ObjectWriter writer, final Map<String, Object> fields,
+            final FieldNames names) throws IOException {
+        final StringWriter out = new StringWriter();
+        final Fragment fragment = new Fragment(fields, names, out);
+        writer.writeValue(out, fragment);
+        return new StaticMixedFields(fields, new SerializedString(fragment.json));
+    }
+
+    /**
+     * @param current the map the adapter returns now
+     * @return true if these encoded fields were built from that map
+     */
+    boolean isFor(final Map<String, Object> current) {
+        return fields == current;
+    }
+
+    SerializableString getJson() {
+        return json;
+    }
+
+    /**
+     * Writes the fields inside an object after a placeholder field, so the generator emits the same separators and
+     * indentation as it would after an event's fields, and keeps only what was written for the mixed fields.
+     */
+    private static final class Fragment implements JsonSerializable {
+
+        private final Map<String, Object> fields;
+        private final FieldNames names;
+        private final StringWriter out;
+        private String json;
+
+        Fragment(final Map<String, Object> fields, final FieldNames names, final StringWriter out) {
+            this.fields = fields;
+            this.names = names;
+            this.out = out;
+        }
+
+        @Override
+        public void serialize(final JsonGenerator gen, final SerializerProvider serializers) throws IOException {
+            gen.writeStartObject();
+            gen.writeNumberField("", 0);
+            gen.flush();
+            final int start = out.getBuffer().length();
+            for (final Entry<String, Object> entry : fields.entrySet()) {
+                if (entry.getValue() != null) {
+                    gen.writeObjectField(FieldNames.map(names, entry.getKey()), entry.getValue());
+                }
+            }
+            gen.flush();
+            final int end = out.getBuffer().length();
+            gen.writeEndObject();
+            json = out.getBuffer().substring(start, end);
+        }
+
+        @Override
+        public void serializeWithType(final JsonGenerator gen, final SerializerProvider serializers,
+                final TypeSerializer typeSer) throws IOException {
+            serialize(gen, serializers);
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.fasterxml.jackson.core.SerializableString;
+
+/**
+ * A bounded cache of the JSON written for an event's {@code thrown} field, keyed by the shape of the exception: the
+ * class, message and stack frames of the throwable, its causes and its suppressed exceptions.
+ * <p>
+ * When the same failure is logged over and over, only the first occurrence pays for resolving the extended stack
+ * trace and serializing it; later ones copy the cached JSON. Because the extended stack trace also records which
+ * frames were found on the logging call stack and which jar each class came from, a cached entry shows those details
+ * as they were resolved for the first occurrence.
+ * </p>
+ * <p>
+ * Entries are kept in a fixed table of {@code maxSize} slots, rounded up to a power of two, updated with
+ * compare-and-set so that logging threads never lock. A new shape takes a free slot near its hash or evicts the least
+ * recently used entry there, an entry's last use being recorded to within 10 ms. Looking up a throwable reuses a
+ * per-thread key, so a hit allocates nothing beyond the copy of each stack trace that
+ * {@link Throwable#getStackTrace()} makes.
+ * </p>
+ * <p>
+ * Enable it with {@code thrownCacheSize} on {@link ExtendedJsonLayout}, and watch {@link #getHitRate()} to see how
+ * much work it saves.
+ * </p>
+ */
+public final class ThrownCache {
+
+    /**
+     * Throwables with more causes and suppressed exceptions than this, all levels counted, are not cached.
+     */
+    private static final int MAX_THROWABLES = 64;
+
+    /**
+     * How many neighbouring slots an entry may live in.
+     */
+    private static final int WAYS = 4;
+
+    /**
+     * How stale an entry's last use may get before a hit records it again. Eviction only has to tell entries in use
+     * from entries that are not, so a hot entry need not write its time, and contend for its cache line, on every hit.
+     */
+    private static final long TOUCH_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final ThreadLocal<Probe> probes = new ThreadLocal<>();
+
+    private final int maxSize;
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    ThrownCache(final int maxSize) {
+        this.maxSize = maxSize;
+        int size = WAYS;
+        while (size < maxSize) {
+            size <<= 1;
+        }
+        this.entries = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+    }
+
+    /**
+     * @param thrown the event's throwable
+     * @return the key for the throwable, or null if it cannot be cached; the key belongs to the calling thread and
+     * only holds until its next call
+     */
+    Object keyOf(final Throwable thrown) {
+        Probe probe = probes.get();
+        if (probe == null) {
+            probe = new Probe();
+            probes.set(probe);
+        }
+        return probe.fill(thrown) ? probe : null;
+    }
+
+    /**
+     * Looks up the JSON for a key, counting the lookup as a hit or a miss.
+     */
+    SerializableString get(final Object key) {
+        final Probe probe = (Probe) key;
+        for (int i = 0; i < WAYS; i++) {
+            final Entry entry = entries.get((probe.hash + i) & mask);
+            if (entry != null && entry.key.matches(probe)) {
+                final long now = System.nanoTime();
+                if (now - entry.lastUsed > TOUCH_NANOS) {
+                    entry.lastUsed = now;
+                }
+                probe.clear();
+                hits.incrementAndGet();
+                return entry.json;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param key a key from {@link #keyOf(Throwable)} that was not found
+     * @return a key that stays valid for {@link #put(Object, SerializableString)} whatever the thread looks up next
+     */
+    Object copyOf(final Object key) {
+        final Probe probe = (Probe) key;
+        final Key copy = new Key(probe);
+        probe.clear();
+        return copy;
+    }
+
+    /**
+     * @param key a key from {@link #copyOf(Object)}
+     * @param json the JSON written for it
+     */
+    void put(final Object key, final SerializableString json) {
+        final Key entryKey = (Key) key;
+        final Entry entry = new Entry(entryKey, json);
+        int victim = -1;
+        Entry oldest = null;
+        for (int i = 0; i < WAYS; i++) {
+            final int index = (entryKey.hash + i) & mask;
+            final Entry current = entries.get(index);
+            if (current == null) {
+                if (entries.compareAndSet(index, null, entry)) {
+                    return;
+                }
+                continue;
+            }
+            if (current.key.equals(entryKey)) {
+                // another thread cached the same shape first
+                return;
+            }
+            if (oldest == null || current.lastUsed < oldest.lastUsed) {
+                victim = index;
+                oldest = current;
+            }
+        }
+        if (victim >= 0) {
+            // if another thread replaced the entry meanwhile, the new one is not cached this time
+            entries.compareAndSet(victim, oldest, entry);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < entries.length(); i++) {
+            if (entries.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of events with a throwable whose {@code thrown} JSON came from the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        final long hitCount = hits.get();
+        final long total = hitCount + misses.get();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ThrownCache[size=" + size() + ", maxSize=" + maxSize + ", hits=" + getHitCount() + ", misses="
+                + getMissCount() + "]";
+    }
+
+    /**
+     * A throwable and everything nested in it, flattened in the order the throwable, its cause and then its suppressed
+     * exceptions are visited. Each throwable's shape records whether it has a cause and how many suppressed
+     * exceptions, so that equal arrays mean equal nesting.
+     */
+    private abstract static class Shape {
+
+        int count;
+        Class<?>[] types;
+        String[] messages;
+        StackTraceElement[][] frames;
+        int[] shapes;
+        int hash;
+
+        final boolean sameAs(final Shape other) {
+            if (hash != other.hash || count != other.count) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (types[i] != other.types[i] || shapes[i] != other.shapes[i]
+                        || !(messages[i] == null ? other.messages[i] == null : messages[i].equals(other.messages[i]))
+                        || !Arrays.equals(frames[i], other.frames[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The calling thread's key, refilled for each lookup.
+     */
+    private static final class Probe extends Shape {
+
+        private final Throwable[] throwables = new Throwable[MAX_THROWABLES];
+
+        Probe() {
+            types = new Class<?>[MAX_THROWABLES];
+            messages = new String[MAX_THROWABLES];
+            frames = new StackTraceElement[MAX_THROWABLES][];
+            shapes = new int[MAX_THROWABLES];
+        }
+
+        /**
+         * @return false if the throwable refers back to itself or has too many nested throwables
+         */
+        boolean fill(final Throwable thrown) {
+            count = 0;
+            hash = 0;
+            if (!add(thrown)) {
+                clear();
+                return false;
+            }
+            hash ^= hash >>> 16;
+            return true;
+        }
+
+        private boolean add(final Throwable thrown) {
+            if (count == MAX_THROWABLES) {
+                return false;
+            }
+            for (int i = 0; i < count; i++) {
+                if (throwables[i] == thrown) {
+                    return false;
+                }
+            }
+            final int index = count++;
+            final Throwable cause = thrown.getCause();
+            final Throwable[] suppressed = thrown.getSuppressed();
+            throwables[index] = thrown;
+            types[index] = thrown.getClass();
+            messages[index] = thrown.getMessage();
+            frames[index] = thrown.getStackTrace();
+            shapes[index] = suppressed.length << 1 | (cause == null ? 0 : 1);
+            int h = 31 * hash + types[index].hashCode();
+            h = 31 * h + (messages[index] == null ? 0 : messages[index].hashCode());
+            h = 31 * h + Arrays.hashCode(frames[index]);
+            hash = 31 * h + shapes[index];
+            if (cause != null && !add(cause)) {
+                return false;
+            }
+            for (final Throwable s : suppressed) {
+                if (!add(s)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Lets go of the throwables, which would otherwise stay reachable from the thread.
+         */
+        void clear() {
+            Arrays.fill(throwables, 0, count, null);
+            Arrays.fill(types, 0, count, null);
+            Arrays.fill(messages, 0, count, null);
+            Arrays.fill(frames, 0, count, null);
+        }
+    }
+
+    /**
+     * The key of an entry, copied from a {@link Probe}.
+     */
+    private static final class Key extends Shape {
+
+        Key(final Probe probe) {
+            count = probe.count;
+            types = Arrays.copyOf(probe.types, count);
+            messages = Arrays.copyOf(probe.messages, count);
+            frames = Arrays.copyOf(probe.frames, count);
+            shapes = Arrays.copyOf(probe.shapes, count);
+            hash = probe.hash;
+        }
+
+        boolean matches(final Probe probe) {
+            return sameAs(probe);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            return obj instanceof Key && sameAs((Key) obj);
+        }
+    }
+
+    private static final class Entry {
+
+        final Key key;
+        final SerializableString json;
+        volatile long lastUsed = System.nanoTime();
+
+        Entry(final Key key, final SerializableString json) {
+            this.key = key;
+            this.json = json;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.apache.logging.log4j.core.layout;
+
+import java.io.IOException;
+import java.util.TimeZone;
+
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.util.datetime.FastDateFormat;
+import org.apache.logging.log4j.status.StatusLogger;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Formats an event's time for the layout's {@code timestamp} field. The pattern is split around its milliseconds
+ * ({@code SSS}); the text before and after them is formatted once per second and cached, so an event in the same
+ * second as the one before only has its three millisecond digits rendered. A pattern without milliseconds is
+ * formatted once per second as a whole.
+ * <p>
+ * A pattern that uses milliseconds any other way than as a single {@code SSS} is formatted in full for every event.
+ * </p>
+ */
+public final class TimestampFormat {
+
+    /**
+     * The name of the field, before the layout's {@link FieldNames} are applied.
+     */
+    static final String FIELD = "timestamp";
+
+    /**
+     * The pattern used for {@code timestampPattern="ISO8601"}.
+     */
+    static final String ISO8601_PATTERN = "yyyy-MM-dd'T'HH:mm:ss.SSSXXX";
+
+    private static final Logger LOGGER = StatusLogger.getLogger();
+
+    private static final int MILLIS_DIGITS = 3;
+
+    /**
+     * What {@link #millisIndex(String)} returns for a pattern without milliseconds.
+     */
+    private static final int NO_MILLIS = -2;
+
+    private final FastDateFormat fullFormat;
+    private final FastDateFormat prefixFormat;
+    private final FastDateFormat suffixFormat;
+    private final int millisDigits;
+    private volatile Second second;
+    private final ThreadLocal<char[]> buffers = new ThreadLocal<>();
+
+    private TimestampFormat(final String pattern, final TimeZone timeZone) {
+        final int millis = millisIndex(pattern);
+        if (millis == NO_MILLIS) {
+            this.fullFormat = null;
+            this.prefixFormat = FastDateFormat.getInstance(pattern, timeZone);
+            this.suffixFormat = null;
+            this.millisDigits = 0;
+        } else if (millis < 0) {
+            this.fullFormat = FastDateFormat.getInstance(pattern, timeZone);
+            this.prefixFormat = null;
+            this.suffixFormat = null;
+            this.millisDigits = 0;
+        } else {
+            this.fullFormat = null;
+            this.prefixFormat = FastDateFormat.getInstance(pattern.substring(0, millis), timeZone);
+            this.suffixFormat = FastDateFormat.getInstance(pattern.substring(millis + MILLIS_DIGITS), timeZone);
+            this.millisDigits = MILLIS_DIGITS;
+        }
+    }
+
+    /**
+     * @param pattern a {@link java.text.SimpleDateFormat} pattern, as a {@code date} lookup takes it
+     * @param timeZone the time zone
+     * @return the format
+     * @throws IllegalArgumentException if the pattern is not valid
+     */
+    static TimestampFormat forLookup(final String pattern, final TimeZone timeZone) {
+        return new TimestampFormat(pattern, timeZone);
+    }
+
+    /**
+     * @param pattern a {@link java.text.SimpleDateFormat} pattern, "ISO8601", or null
+     * @param timeZone a time zone id, defaults to UTC, which an unknown id also falls back to
+     * @return the format, or null if there is no pattern or it is not valid
+     */
+    static TimestampFormat create(final String pattern, final String timeZone) {
+        if (pattern == null || pattern.isEmpty()) {
+            return null;
+        }
+        try {
+            return new TimestampFormat("ISO8601".equalsIgnoreCase(pattern) ? ISO8601_PATTERN : pattern,
+                    toTimeZone(timeZone));
+        } catch (final IllegalArgumentException e) {
+            LOGGER.error("Invalid timestampPattern '{}': {}", pattern, e.getMessage());
+            return null;
+        }
+    }
+
+    private static TimeZone toTimeZone(final String id) {
+        final TimeZone utc = TimeZone.getTimeZone("UTC");
+        if (id == null) {
+            return utc;
+        }
+        final TimeZone timeZone = TimeZone.getTimeZone(id);
+        // an id TimeZone does not know gives GMT instead
+        if ("GMT".equals(timeZone.getID()) && !"GMT".equals(id)) {
+            LOGGER.warn("Unknown timestampTimeZone '{}', using UTC", id);
+            return utc;
+        }
+        return timeZone;
+    }
+
+    /**
+     * @return the index of the pattern's only {@code SSS}, {@link #NO_MILLIS} if it has no milliseconds, or -1 if it
+     * uses them otherwise
+     */
+    private static int millisIndex(final String pattern) {
+        int index = NO_MILLIS;
+        boolean quoted = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (c == 'S' && !quoted) {
+                int end = i;
+                while (end < pattern.length() && pattern.charAt(end) == 'S') {
+                    end++;
+                }
+                if (index >= 0 || end - i != MILLIS_DIGITS) {
+                    return -1;
+                }
+                index = i;
+                i = end - 1;
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes the formatted time as a string value.
+     */
+    void write(final long timeMillis, final JsonGenerator gen) throws IOException {
+        if (fullFormat != null) {
+            gen.writeString(fullFormat.format(timeMillis));
+            return;
+        }
+        final long epochSecond = floorSecond(timeMillis);
+        final Second cached = second(epochSecond);
+        if (millisDigits == 0) {
+            gen.writeString(cached.prefix);
+            return;
+        }
+        final int length = cached.prefix.length() + MILLIS_DIGITS + cached.suffix.length();
+        char[] buffer = buffers.get();
+        if (buffer == null || buffer.length < length) {
+            buffer = new char[length];
+            buffers.set(buffer);
+        }
+        int pos = cached.prefix.length();
+        cached.prefix.getChars(0, pos, buffer, 0);
+        final int millis = (int) (timeMillis - epochSecond * 1000);
+        buffer[pos++] = (char) ('0' + millis / 100);
+        buffer[pos++] = (char) ('0' + millis / 10 % 10);
+        buffer[pos++] = (char) ('0' + millis % 10);
+        cached.suffix.getChars(0, cached.suffix.length(), buffer, pos);
+        gen.writeString(buffer, 0, length);
+    }
+
+    /**
+     * @return the formatted time
+     */
+    String format(final long timeMillis) {
+        if (fullFormat != null) {
+            return fullFormat.format(timeMillis);
+        }
+        final long epochSecond = floorSecond(timeMillis);
+        final Second cached = second(epochSecond);
+        if (millisDigits == 0) {
+            return cached.prefix;
+        }
+        final int millis = (int) (timeMillis - epochSecond * 1000);
+        final StringBuilder sb = new StringBuilder(cached.prefix.length() + MILLIS_DIGITS + cached.suffix.length());
+        sb.append(cached.prefix).append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10))
+                .append((char) ('0' + millis % 10));
+        return sb.append(cached.suffix).toString();
+    }
+
+    /**
+     * @return the text around the milliseconds for the second, formatted again only when the second changes
+     */
+    private Second second(final long epochSecond) {
+        Second cached = second;
+        if (cached == null || cached.epochSecond != epochSecond) {
+            final long start = epochSecond * 1000;
+            cached = new Second(epochSecond, prefixFormat.format(start),
+                    suffixFormat == null ? "" : suffixFormat.format(start));
+            second = cached;
+        }
+        return cached;
+    }
+
+    private static long floorSecond(final long timeMillis) {
+        final long epochSecond = timeMillis / 1000;
+        return timeMillis < 0 && epochSecond * 1000 != timeMillis ? epochSecond - 1 : epochSecond;
+    }
+
+    private static final class Second {
+
+        final long epochSecond;
+        final String prefix;
+        final String suffix;
+
+        Second(final long epochSecond, final String prefix, final String suffix) {
+            this.epochSecond = epochSecond;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+    }
+}
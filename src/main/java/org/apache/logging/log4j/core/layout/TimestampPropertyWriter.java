@@ -0,0 +1,41 @@
+package org.apache.logging.log4j.core.layout;
+
+import org.apache.logging.log4j.core.LogEvent;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Writes an event's time, formatted by a {@link TimestampFormat}, as an extra property next to {@code timeMillis}.
+ */
+final class TimestampPropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient TimestampFormat format;
+
+    /**
+     * @param timeMillis the event's {@code timeMillis} property, whose accessor the new property shares
+     * @param name the name to write the property under
+     * @param format the format
+     */
+    TimestampPropertyWriter(final BeanPropertyWriter timeMillis, final String name, final TimestampFormat format) {
+        super(timeMillis, new SerializedString(name));
+        this.format = format;
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        gen.writeFieldName(_name);
+        format.write(((LogEvent) bean).getTimeMillis(), gen);
+    }
+
+    @Override
+    public void serializeAsElement(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        format.write(((LogEvent) bean).getTimeMillis(), gen);
+    }
+}
@@ -0,0 +1,43 @@
+package org.apache.logging.log4j.core.layout;
+
+import org.apache.logging.log4j.core.impl.ThrowableProxy;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.BeanPropertyWriter;
+
+/**
+ * Writes an event's {@code thrown} field through a {@link StackTraceTrimmer} instead of log4j's mixins.
+ */
+final class TrimmedThrownPropertyWriter extends BeanPropertyWriter {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient StackTraceTrimmer trimmer;
+
+    TrimmedThrownPropertyWriter(final BeanPropertyWriter delegate, final StackTraceTrimmer trimmer) {
+        super(delegate);
+        this.trimmer = trimmer;
+    }
+
+    @Override
+    public void serializeAsField(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final Object value = get(bean);
+        if (value instanceof ThrowableProxy) {
+            gen.writeFieldName(_name);
+            trimmer.write((ThrowableProxy) value, gen);
+        }
+    }
+
+    @Override
+    public void serializeAsElement(final Object bean, final JsonGenerator gen, final SerializerProvider prov)
+            throws Exception {
+        final Object value = get(bean);
+        if (value instanceof ThrowableProxy) {
+            trimmer.write((ThrowableProxy) value, gen);
+        } else {
+            gen.writeNull();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package org.apache.logging.log4j.core.appender;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.ExtendedJsonLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class MappedFileAppenderTest {
+
+    private static final int REGION_LENGTH = 4096;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testCompleteAcrossRegions() throws Exception {
+        final File file = new File(folder.getRoot(), "complete.json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        final int count = 500;
+        append(newAppender(file, false, -1, layout), 0, count);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        assertNotEquals(0, bytes[bytes.length - 1]);
+        final JsonNode events = new ObjectMapper().readTree(bytes);
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("event " + i, events.get(i).get("message").asText());
+        }
+    }
+
+    @Test
+    public void testStopWritesQueuedEvents() throws Exception {
+        final File file = new File(folder.getRoot(), "async.json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .setEncoderThreads(2)
+                .build();
+        // @formatter:on
+        final int count = 500;
+        append(newAppender(file, false, -1, layout), 0, count);
+        // the footer comes after every queued event
+        final JsonNode events = new ObjectMapper().readTree(Files.readAllBytes(file.toPath()));
+        assertEquals(count, events.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("event " + i, events.get(i).get("message").asText());
+        }
+    }
+
+    @Test
+    public void testAppendAfterRestart() throws Exception {
+        final File file = new File(folder.getRoot(), "lines.json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        append(newAppender(file, true, 0, layout), 0, 100);
+        append(newAppender(file, true, MappedFileManager.DEFAULT_FORCE_INTERVAL_MILLIS, layout), 100, 100);
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(200, lines.size());
+        final ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("event " + i, mapper.readTree(lines.get(i)).get("message").asText());
+        }
+        append(newAppender(file, false, -1, layout), 0, 1);
+        assertEquals(1, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testAppendAfterCrash() throws Exception {
+        final File file = new File(folder.getRoot(), "crashed.json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        append(newAppender(file, true, -1, layout), 0, 10);
+        // what a region that was never truncated leaves behind
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() + REGION_LENGTH);
+        }
+        append(newAppender(file, true, -1, layout), 10, 10);
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        for (final byte b : bytes) {
+            assertNotEquals(0, b);
+        }
+        final List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals(20, lines.size());
+        final ObjectMapper mapper = new ObjectMapper();
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals("event " + i, mapper.readTree(lines.get(i)).get("message").asText());
+        }
+    }
+
+    @Test
+    public void testWriteAfterStop() throws Exception {
+        final File file = new File(folder.getRoot(), "stopped.json");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        final MappedFileAppender appender = newAppender(file, false, -1, layout);
+        final MappedFileManager manager = appender.getManager();
+        append(appender, 0, 10);
+        final long length = file.length();
+        // what a background writer of the layout does when it comes too late
+        assertEquals(0, manager.getByteBuffer().remaining());
+        final byte[] late = "late\n".getBytes(StandardCharsets.UTF_8);
+        try {
+            manager.writeBytes(late, 0, late.length);
+            fail("write after stop");
+        } catch (final AppenderLoggingException expected) {
+            // dropped
+        }
+        try {
+            manager.drain(manager.getByteBuffer());
+            fail("drain after stop");
+        } catch (final AppenderLoggingException expected) {
+            // dropped
+        }
+        assertEquals(length, file.length());
+        assertEquals(10, Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    private static MappedFileAppender newAppender(final File file, final boolean append, final long forceIntervalMillis,
+            final ExtendedJsonLayout layout) {
+        // @formatter:off
+        return MappedFileAppender.newBuilder()
+                .withName("mapped")
+                .setFileName(file.getPath())
+                .setAppend(append)
+                .setRegionLength(REGION_LENGTH)
+                .setForceIntervalMillis(forceIntervalMillis)
+                .withLayout(layout)
+                .build();
+        // @formatter:on
+    }
+
+    private static void append(final MappedFileAppender appender, final int from, final int count) {
+        appender.start();
+        for (int i = from; i < from + count; i++) {
+            appender.append(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.INFO)
+                    .setMessage(new SimpleMessage("event " + i)).build());
+        }
+        appender.stop();
+    }
+}
@@ -0,0 +1,232 @@
+package org.apache.logging.log4j.core.layout;
+
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.util.Constants;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+/**
+ * Fails when encoding an event starts allocating more than its budget.
+ * <p>
+ * Each configuration of the {@link ExtendedJsonLayoutTest} matrix has a budget, in bytes per event, for a plain
+ * event and for {@link LogEventFixtures#createLogEvent()}, which carries a marker, context stack and nested
+ * exception. The allocation is measured with the per-thread allocated bytes counter of
+ * {@link com.sun.management.ThreadMXBean}, after enough events for the JIT to have compiled the encode path. The
+ * budgets leave about 25% headroom over what the layout allocates on Java 8; raise one only when the extra
+ * allocation is intended.
+ * </p>
+ * <p>
+ * Encoding is not allocation free: Jackson creates a serializer provider for every value it writes, which is most of
+ * the plain event's budget, and a stack trace costs what its frames and, as a string, its text take.
+ * </p>
+ */
+@RunWith(Parameterized.class)
+public class ExtendedJsonLayoutAllocationTest {
+
+    private static final int WARMUP_EVENTS = 5000;
+
+    private static final int MEASURED_EVENTS = 2000;
+
+    private static final int MEASUREMENTS = 3;
+
+    @Parameters(name = "locationInfo={0}, properties={1}, propertiesAsList={2}, includeStacktrace={3}, stacktraceAsString={4}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] {
+            // locationInfo, properties, propertiesAsList, includeStacktrace, stacktraceAsString, plain, fixture
+            { false, false, false, false, false, 256, 384 },
+            { false, false, false, false, true, 256, 384 },
+            { false, false, false, true, false, 256, 4736 },
+            { false, false, false, true, true, 256, 174080 },
+            { false, false, true, false, false, 256, 384 },
+            { false, false, true, false, true, 256, 384 },
+            { false, false, true, true, false, 256, 4736 },
+            { false, false, true, true, true, 256, 174080 },
+            { false, true, false, false, false, 256, 384 },
+            { false, true, false, false, true, 256, 384 },
+            { false, true, false, true, false, 256, 4736 },
+            { false, true, false, true, true, 256, 174080 },
+            { false, true, true, false, false, 256, 384 },
+            { false, true, true, false, true, 256, 384 },
+            { false, true, true, true, false, 256, 4736 },
+            { false, true, true, true, true, 256, 174080 },
+            { true, false, false, false, false, 256, 384 },
+            { true, false, false, false, true, 256, 384 },
+            { true, false, false, true, false, 256, 4736 },
+            { true, false, false, true, true, 256, 172032 },
+            { true, false, true, false, false, 256, 384 },
+            { true, false, true, false, true, 256, 384 },
+            { true, false, true, true, false, 256, 4736 },
+            { true, false, true, true, true, 256, 172032 },
+            { true, true, false, false, false, 256, 384 },
+            { true, true, false, false, true, 256, 384 },
+            { true, true, false, true, false, 256, 4736 },
+            { true, true, false, true, true, 256, 172032 },
+            { true, true, true, false, false, 256, 384 },
+            { true, true, true, false, true, 256, 384 },
+            { true, true, true, true, false, 256, 4736 },
+            { true, true, true, true, true, 256, 172032 },
+        });
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean;
+
+    @BeforeClass
+    public static void setupClass() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("per-thread allocation counters are not available",
+                bean instanceof com.sun.management.ThreadMXBean
+                        && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        Assume.assumeTrue("the budgets assume the per-thread reusable buffers", Constants.ENABLE_THREADLOCALS);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private final ExtendedJsonLayout layout;
+    private final ExtendedJsonLayout timestampLayout;
+    private final ExtendedJsonLayout omitDefaultsLayout;
+    private final ExtendedJsonLayout limitedLayout;
+    private final long plainBudget;
+    private final long fixtureBudget;
+
+    public ExtendedJsonLayoutAllocationTest(final boolean locationInfo, final boolean properties,
+            final boolean propertiesAsList, final boolean includeStacktrace, final boolean stacktraceAsString,
+            final int plainBudget, final int fixtureBudget) {
+        // @formatter:off
+        this.layout = ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(properties)
+                .setPropertiesAsList(propertiesAsList)
+                .setIncludeStacktrace(includeStacktrace)
+                .setStacktraceAsString(stacktraceAsString)
+                .setCompact(true)
+                .build();
+        this.timestampLayout = ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(properties)
+                .setPropertiesAsList(propertiesAsList)
+                .setIncludeStacktrace(includeStacktrace)
+                .setStacktraceAsString(stacktraceAsString)
+                .setCompact(true)
+                .setTimestampPattern("ISO8601")
+                .build();
+        this.omitDefaultsLayout = ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(properties)
+                .setPropertiesAsList(propertiesAsList)
+                .setIncludeStacktrace(includeStacktrace)
+                .setStacktraceAsString(stacktraceAsString)
+                .setCompact(true)
+                .setOmitDefaults(true)
+                .build();
+        this.limitedLayout = ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(locationInfo)
+                .setProperties(properties)
+                .setPropertiesAsList(propertiesAsList)
+                .setIncludeStacktrace(includeStacktrace)
+                .setStacktraceAsString(stacktraceAsString)
+                .setCompact(true)
+                .setMaxMessageLength(1024)
+                .setMaxContextValueLength(1024)
+                .build();
+        // @formatter:on
+        this.plainBudget = plainBudget;
+        this.fixtureBudget = fixtureBudget;
+    }
+
+    @Test
+    public void testPlainEvent() {
+        final Log4jLogEvent fixture = LogEventFixtures.createLogEvent();
+        final LogEvent plain = new Log4jLogEvent.Builder(fixture).setMarker(null).setThrown(null)
+                .setThrownProxy(null).setMessage(new SimpleMessage("Msg")).build();
+        assertWithinBudget(plain, plainBudget);
+    }
+
+    @Test
+    public void testFixtureEvent() {
+        assertWithinBudget(LogEventFixtures.createLogEvent(), fixtureBudget);
+    }
+
+    @Test
+    public void testTimestampWithinSecond() {
+        final Log4jLogEvent fixture = LogEventFixtures.createLogEvent();
+        final LogEvent plain = new Log4jLogEvent.Builder(fixture).setMarker(null).setThrown(null)
+                .setThrownProxy(null).setMessage(new SimpleMessage("Msg")).build();
+        assertWithinBudget(timestampLayout, plain, plainBudget);
+    }
+
+    @Test
+    public void testOmitDefaults() {
+        final Log4jLogEvent fixture = LogEventFixtures.createLogEvent();
+        final LogEvent plain = new Log4jLogEvent.Builder(fixture).setMarker(null).setThrown(null)
+                .setThrownProxy(null).setMessage(new SimpleMessage("Msg")).build();
+        assertWithinBudget(omitDefaultsLayout, plain, plainBudget);
+        assertWithinBudget(omitDefaultsLayout, fixture, fixtureBudget);
+    }
+
+    @Test
+    public void testFieldLimits() {
+        assertWithinBudget(limitedLayout, LogEventFixtures.createLogEvent(), fixtureBudget);
+    }
+
+    private void assertWithinBudget(final LogEvent event, final long budget) {
+        assertWithinBudget(layout, event, budget);
+    }
+
+    private void assertWithinBudget(final ExtendedJsonLayout layout, final LogEvent event, final long budget) {
+        final DiscardingDestination destination = new DiscardingDestination();
+        for (int i = 0; i < WARMUP_EVENTS; i++) {
+            layout.encode(event, destination);
+        }
+        final long threadId = Thread.currentThread().getId();
+        // a compilation that lands during a measurement can allocate on its own, so keep the lowest one
+        long perEvent = Long.MAX_VALUE;
+        for (int m = 0; m < MEASUREMENTS && perEvent > budget; m++) {
+            final long before = threadBean.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < MEASURED_EVENTS; i++) {
+                layout.encode(event, destination);
+            }
+            perEvent = Math.min(perEvent, (threadBean.getThreadAllocatedBytes(threadId) - before) / MEASURED_EVENTS);
+        }
+        assertTrue("Allocated " + perEvent + " bytes per event, budget is " + budget, perEvent <= budget);
+    }
+
+    private static class DiscardingDestination implements ByteBufferDestination {
+
+        private final ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+
+        @Override
+        public ByteBuffer getByteBuffer() {
+            return buffer;
+        }
+
+        @Override
+        public ByteBuffer drain(final ByteBuffer buf) {
+            buf.clear();
+            return buf;
+        }
+
+        @Override
+        public void writeBytes(final ByteBuffer data) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, this);
+        }
+
+        @Override
+        public void writeBytes(final byte[] data, final int offset, final int length) {
+            ByteBufferDestinationHelper.writeToUnsynchronized(data, offset, length, this);
+        }
+    }
+}
@@ -16,31 +16,68 @@
  */
 package org.apache.logging.log4j.core.layout;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.InetAddress;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.ThreadContext;
 import org.apache.logging.log4j.categories.Layouts;
 import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.LogEvent;
 import org.apache.logging.log4j.core.BasicConfigurationFactory;
 import org.apache.logging.log4j.core.Logger;
 import org.apache.logging.log4j.core.LoggerContext;
+import org.apache.logging.log4j.core.appender.FileAppender;
+import org.apache.logging.log4j.core.appender.ManagerFactory;
+import org.apache.logging.log4j.core.appender.OutputStreamManager;
+import org.apache.logging.log4j.core.appender.RollingFileAppender;
+import org.apache.logging.log4j.core.appender.rolling.DefaultRolloverStrategy;
+import org.apache.logging.log4j.core.appender.rolling.SizeBasedTriggeringPolicy;
 import org.apache.logging.log4j.core.config.Configuration;
 import org.apache.logging.log4j.core.config.ConfigurationFactory;
+import org.apache.logging.log4j.core.config.DefaultConfiguration;
+import org.apache.logging.log4j.core.async.RingBufferLogEvent;
+import org.apache.logging.log4j.core.impl.ContextDataFactory;
 import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.impl.MutableLogEvent;
 import org.apache.logging.log4j.core.jackson.Log4jJsonObjectMapper;
+import org.apache.logging.log4j.core.util.KeyValuePair;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.ObjectMessage;
+import org.apache.logging.log4j.message.ParameterizedMessage;
 import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.message.StringFormattedMessage;
 import org.apache.logging.log4j.spi.AbstractLogger;
 import org.apache.logging.log4j.test.appender.ListAppender;
+import org.apache.logging.log4j.util.StringMap;
 import org.apache.logging.log4j.util.Strings;
 import org.junit.AfterClass;
 import org.junit.Assert;
@@ -48,9 +85,14 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.Module;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.savantly.log4j2.LevelDeserializer;
 
 /**
@@ -411,6 +453,1378 @@ public class ExtendedJsonLayoutTest {
         assertEquals(expected, actual);
     }
 
+    @Test
+    public void testEncodeMatchesToSerializable() throws Exception {
+        final Log4jLogEvent expected = LogEventFixtures.createLogEvent();
+        for (final boolean compact : new boolean[] { true, false }) {
+            // @formatter:off
+            final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                    .setLocationInfo(true)
+                    .setProperties(true)
+                    .setComplete(false)
+                    .setCompact(compact)
+                    .setEventEol(true)
+                    .setIncludeStacktrace(true)
+                    .build();
+            // @formatter:on
+            // a small buffer forces the destination to drain several times per event
+            final SpyByteBufferDestination destination = new SpyByteBufferDestination(64, 64 * 1024);
+            layout.encode(expected, destination);
+            layout.encode(expected, destination);
+            final String str = layout.toSerializable(expected);
+            assertEquals(str + str, destination.toUtf8String());
+            assertTrue(destination.drainCount > 1);
+        }
+    }
+
+    @Test
+    public void testEncodeBatchMatchesEncode() throws Exception {
+        final List<LogEvent> events = Arrays.<LogEvent>asList(LogEventFixtures.createLogEvent(),
+                newEvent(null), newEvent(newException("boom")), LogEventFixtures.createLogEvent());
+        for (final boolean compact : new boolean[] { true, false }) {
+            for (final boolean complete : new boolean[] { true, false }) {
+                final ExtendedJsonLayout single = newBatchLayout(compact, complete);
+                final SpyByteBufferDestination expected = new SpyByteBufferDestination(1024, 256 * 1024);
+                for (final LogEvent event : events) {
+                    single.encode(event, expected);
+                }
+
+                final ExtendedJsonLayout batched = newBatchLayout(compact, complete);
+                final SpyByteBufferDestination actual = new SpyByteBufferDestination(1024, 256 * 1024);
+                batched.encodeBatch(events.subList(0, 2), actual);
+                batched.encodeBatch(events.subList(2, 4).toArray(new LogEvent[2]), actual);
+                assertEquals(expected.toUtf8String(), actual.toUtf8String());
+
+                final ExtendedJsonLayout toBytes = newBatchLayout(compact, complete);
+                assertEquals(expected.toUtf8String(), new String(toBytes.toByteArray(events), StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private static ExtendedJsonLayout newBatchLayout(final boolean compact, final boolean complete) {
+        // @formatter:off
+        return ExtendedJsonLayout.newBuilder()
+                .setLocationInfo(true)
+                .setProperties(true)
+                .setCompact(compact)
+                .setComplete(complete)
+                .setEventEol(true)
+                .setJsonAdapter(EventFieldsAdapter.class.getName())
+                .build();
+        // @formatter:on
+    }
+
+    @Test
+    public void testBinaryFormats() throws Exception {
+        final ObjectMapper json = new ObjectMapper();
+        final Log4jLogEvent event = LogEventFixtures.createLogEvent();
+        final JsonFactory[] factories = { new SmileFactory(), new CBORFactory() };
+        final ExtendedJsonLayout.Format[] formats = { ExtendedJsonLayout.Format.SMILE, ExtendedJsonLayout.Format.CBOR };
+        for (final String adapter : new String[] { ExtendedJsonAdapter.class.getName(), EventFieldsAdapter.class.getName() }) {
+            for (int i = 0; i < formats.length; i++) {
+                // @formatter:off
+                final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                        .setLocationInfo(true)
+                        .setProperties(true)
+                        .setStacktraceAsString(false)
+                        .setComplete(true)
+                        .setJsonAdapter(adapter)
+                        .setFormat(formats[i])
+                        .build();
+                // @formatter:on
+                assertEquals(formats[i], layout.getFormat());
+                assertNull(layout.getHeader());
+                final String text = layout.toSerializable(event);
+                final byte[] bytes = layout.toByteArray(event);
+                assertTrue(bytes.length < text.length());
+
+                final JsonNode decoded = new ObjectMapper(factories[i]).readTree(bytes);
+                assertEquals(json.writeValueAsString(json.readTree(text)), json.writeValueAsString(decoded));
+
+                final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+                layout.encode(event, destination);
+                layout.encodeBatch(Arrays.<LogEvent>asList(event), destination);
+                final byte[] encoded = destination.toByteArray();
+                assertEquals(2 * bytes.length, encoded.length);
+                assertTrue(Arrays.equals(bytes, Arrays.copyOf(encoded, bytes.length)));
+            }
+        }
+        assertEquals("application/x-jackson-smile",
+                ExtendedJsonLayout.newBuilder().setFormat(ExtendedJsonLayout.Format.SMILE).build().getContentType());
+    }
+
+    @Test
+    public void testGzipBlocks() throws Exception {
+        final AbstractJacksonLayout plain = ExtendedJsonLayout.newBuilder().setCompact(true).setEventEol(true).build();
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setCompression(ExtendedJsonLayout.Compression.GZIP)
+                .setCompressionBlockEvents(3)
+                .build();
+        // @formatter:on
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 7; i++) {
+            final Log4jLogEvent event = newEvent(i == 4 ? newException("boom") : null);
+            expected.append(plain.toSerializable(event));
+            layout.encode(event, destination);
+        }
+        assertEquals(2, gzipMembers(destination.toByteArray()));
+        assertEquals(expected.toString().substring(0, expected.length() - plain.toSerializable(newEvent(null)).length()),
+                gunzip(destination.toByteArray()));
+
+        final Log4jLogEvent endOfBatch = Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("last")).setEndOfBatch(true).build();
+        expected.append(plain.toSerializable(endOfBatch));
+        layout.encode(endOfBatch, destination);
+        assertEquals(3, gzipMembers(destination.toByteArray()));
+        assertEquals(expected.toString(), gunzip(destination.toByteArray()));
+
+        final Log4jLogEvent afterBatch = newEvent(null);
+        layout.encode(afterBatch, destination);
+        expected.append(plain.toSerializable(afterBatch));
+        assertEquals(3, gzipMembers(destination.toByteArray()));
+        assertNull(layout.getFooter());
+        assertEquals(4, gzipMembers(destination.toByteArray()));
+        assertEquals(expected.toString(), gunzip(destination.toByteArray()));
+
+        // after a rollover the destination gets a new block
+        final Log4jLogEvent afterFooter = newEvent(null);
+        layout.encode(afterFooter, destination);
+        expected.append(plain.toSerializable(afterFooter));
+        assertEquals(4, gzipMembers(destination.toByteArray()));
+        assertNull(layout.getFooter());
+        assertEquals(5, gzipMembers(destination.toByteArray()));
+        assertEquals(expected.toString(), gunzip(destination.toByteArray()));
+    }
+
+    @Test
+    public void testGzipFileAppender() throws Exception {
+        final File file = File.createTempFile("extended-json", ".json.gz");
+        file.deleteOnExit();
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setCompression(ExtendedJsonLayout.Compression.GZIP)
+                .build();
+        final FileAppender appender = FileAppender.newBuilder()
+                .withName("gzip")
+                .withFileName(file.getPath())
+                .withAppend(false)
+                .withLayout(layout)
+                .build();
+        // @formatter:on
+        appender.start();
+        final AbstractJacksonLayout plain = ExtendedJsonLayout.newBuilder().setCompact(true).setEventEol(true).build();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            final Log4jLogEvent event = newEvent(newException("boom " + i));
+            expected.append(plain.toSerializable(event));
+            appender.append(event);
+        }
+        appender.stop();
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        assertTrue(bytes.length < expected.length() / 5);
+        assertEquals(expected.toString(), gunzip(bytes));
+    }
+
+    @Test(timeout = 60000)
+    public void testGzipRollingFileAcrossRollover() throws Exception {
+        final File dir = Files.createTempDirectory("extended-json").toFile();
+        dir.deleteOnExit();
+        final Configuration config = new DefaultConfiguration();
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setConfiguration(config)
+                .setCompact(true)
+                .setEventEol(true)
+                .setCompression(ExtendedJsonLayout.Compression.GZIP)
+                .setCompressionBlockEvents(5)
+                .build();
+        final RollingFileAppender appender = RollingFileAppender.newBuilder()
+                .withName("rolling")
+                .withFileName(new File(dir, "app.jsonz").getPath())
+                .withFilePattern(new File(dir, "app-%i.jsonz").getPath())
+                .withPolicy(SizeBasedTriggeringPolicy.createPolicy("2 KB"))
+                .withStrategy(DefaultRolloverStrategy.newBuilder().withMax("1000").withConfig(config).build())
+                .withLayout(layout)
+                .setConfiguration(config)
+                .build();
+        // @formatter:on
+        appender.start();
+        final int threads = 8;
+        final int count = 500;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i++) {
+                        appender.append(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.INFO)
+                                .setMessage(new SimpleMessage(thread + "-" + i)).setEndOfBatch(i % 50 == 0)
+                                .build());
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        appender.stop();
+        final File[] files = dir.listFiles();
+        assertTrue(files.length > 2);
+        final ObjectMapper mapper = new ObjectMapper();
+        final List<String> messages = new ArrayList<>();
+        for (final File file : files) {
+            file.deleteOnExit();
+            for (final String line : gunzip(Files.readAllBytes(file.toPath())).split("\n")) {
+                messages.add(mapper.readTree(line).get("message").asText());
+            }
+        }
+        assertEquals(threads * count, messages.size());
+        assertEquals(threads * count, new HashSet<>(messages).size());
+    }
+
+    private static String gunzip(final byte[] bytes) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (final GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            final byte[] buffer = new byte[4096];
+            int length;
+            while ((length = in.read(buffer)) > 0) {
+                out.write(buffer, 0, length);
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static int gzipMembers(final byte[] bytes) {
+        int members = 0;
+        for (int i = 0; i + 2 < bytes.length; i++) {
+            if (bytes[i] == 0x1f && bytes[i + 1] == (byte) 0x8b && bytes[i + 2] == 8) {
+                members++;
+            }
+        }
+        return members;
+    }
+
+    @Test
+    public void testFieldProjection() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setLoggerFqcn(getClass().getName()).build();
+        JsonNode json = mapper.readTree(ExtendedJsonLayout.newBuilder().setProperties(true).build().toSerializable(event));
+        assertTrue(json.has("endOfBatch"));
+        assertTrue(json.has("loggerFqcn"));
+        assertEquals(0, json.get("contextMap").size());
+
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setExcludeFields("loggerFqcn, threadId,threadPriority")
+                .setOmitDefaults(true)
+                .build().toSerializable(event));
+        // @formatter:on
+        assertFalse(json.has("endOfBatch"));
+        assertFalse(json.has("loggerFqcn"));
+        assertFalse(json.has("threadId"));
+        assertFalse(json.has("threadPriority"));
+        assertFalse(json.has("contextMap"));
+        assertFalse(json.has("thrown"));
+        assertEquals("failed", json.get("message").asText());
+        assertTrue(json.has("thread"));
+        assertEquals(event.getTimeMillis(), json.get("timeMillis").asLong());
+
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setOmitDefaults(true)
+                .build().toSerializable(new Log4jLogEvent.Builder(event).setEndOfBatch(true).setThreadId(7)
+                        .setThreadPriority(5).build()));
+        // @formatter:on
+        assertTrue(json.get("endOfBatch").asBoolean());
+        assertEquals(7, json.get("threadId").asLong());
+        assertEquals(5, json.get("threadPriority").asInt());
+
+        final Log4jLogEvent withThrown = newEvent(newException("boom"));
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setIncludeFields("timeMillis,level,message,thrown")
+                .setExcludeFields("timeMillis")
+                .build().toSerializable(withThrown));
+        // @formatter:on
+        final List<String> names = new ArrayList<>();
+        for (final Iterator<String> it = json.fieldNames(); it.hasNext();) {
+            names.add(it.next());
+        }
+        // the default adapter's hostname is not an event field
+        assertEquals(Arrays.asList("level", "message", "thrown", "hostname"), names);
+    }
+
+    @Test
+    public void testFieldNames() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Log4jLogEvent event = newEvent(newException("boom"));
+        // @formatter:off
+        JsonNode json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setSchema(FieldNames.Schema.ECS)
+                .setFieldNameMapping("message=msg, contextMap = mdc")
+                .setThrownCacheSize(8)
+                .build().toSerializable(event));
+        // @formatter:on
+        assertEquals(event.getTimeMillis(), json.get("@timestamp").asLong());
+        assertEquals("ERROR", json.get("log.level").asText());
+        assertEquals(event.getLoggerName(), json.get("log.logger").asText());
+        assertEquals("failed", json.get("msg").asText());
+        assertEquals("boom", json.get("error").get("message").asText());
+        assertTrue(json.has("host.hostname"));
+        assertTrue(json.has("mdc"));
+        assertFalse(json.has("timeMillis"));
+        assertFalse(json.has("hostname"));
+
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setSchema(FieldNames.Schema.GELF)
+                .setExcludeFields("thrown")
+                .build().toSerializable(event));
+        // @formatter:on
+        assertEquals("failed", json.get("short_message").asText());
+        assertEquals("ERROR", json.get("_level").asText());
+        assertEquals(event.getLoggerName(), json.get("_loggerName").asText());
+        assertTrue(json.has("host"));
+        assertFalse(json.has("_thrown"));
+    }
+
+    @Test
+    public void testTimestampPattern() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final long[] times = { 0, 999, 1000, 1500000000123L, 1500000000123L, 1500000000999L, 1500000001001L, -1 };
+        final TimestampFormat iso = TimestampFormat.create("ISO8601", null);
+        final TimestampFormat zoned = TimestampFormat.create("dd/MM HH:mm:ss,SSS 'SSS' Z", "America/New_York");
+        final TimestampFormat seconds = TimestampFormat.create("yyyy-MM-dd HH:mm:ss", "UTC");
+        final TimestampFormat micros = TimestampFormat.create("HH:mm:ss.SSSSSS", "UTC");
+        final TimestampFormat unknownZone = TimestampFormat.create("ISO8601", "Nowhere/Land");
+        for (final long time : times) {
+            assertEquals(formatted(TimestampFormat.ISO8601_PATTERN, "UTC", time), iso.format(time));
+            assertEquals(formatted("dd/MM HH:mm:ss,SSS 'SSS' Z", "America/New_York", time), zoned.format(time));
+            assertEquals(formatted("yyyy-MM-dd HH:mm:ss", "UTC", time), seconds.format(time));
+            assertEquals(formatted("HH:mm:ss.SSSSSS", "UTC", time), micros.format(time));
+            assertEquals(formatted(TimestampFormat.ISO8601_PATTERN, "UTC", time), unknownZone.format(time));
+        }
+
+        // @formatter:off
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setTimestampPattern("ISO8601")
+                .setTimestampTimeZone("Asia/Kolkata")
+                .setCompact(true)
+                .build();
+        // @formatter:on
+        for (final long time : times) {
+            final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setTimeMillis(time).build();
+            final JsonNode json = mapper.readTree(layout.toSerializable(event));
+            assertEquals(formatted(TimestampFormat.ISO8601_PATTERN, "Asia/Kolkata", time),
+                    json.get("timestamp").asText());
+            final Iterator<String> names = json.fieldNames();
+            names.next();
+            assertEquals("timestamp", names.next());
+        }
+
+        // @formatter:off
+        final AbstractJacksonLayout secondsLayout = ExtendedJsonLayout.newBuilder()
+                .setTimestampPattern("yyyy-MM-dd'T'HH:mm:ssXXX")
+                .setTimestampTimeZone("Asia/Kolkata")
+                .setCompact(true)
+                .build();
+        // @formatter:on
+        for (final long time : times) {
+            final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setTimeMillis(time).build();
+            assertEquals(formatted("yyyy-MM-dd'T'HH:mm:ssXXX", "Asia/Kolkata", time),
+                    mapper.readTree(secondsLayout.toSerializable(event)).get("timestamp").asText());
+        }
+    }
+
+    @Test
+    public void testFormattableMessages() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder().setCompact(true).build();
+        final Object nested = new Object() {
+            @Override
+            public String toString() {
+                // formatting this parameter serializes another event on the same thread
+                return layout.toSerializable(new Log4jLogEvent.Builder(newEvent(null))
+                        .setMessage(new ParameterizedMessage("inner {}", "\u00e9")).build()).trim();
+            }
+        };
+        final Message[] messages = { new ParameterizedMessage("a {} \"b\" {}\n\t\u0001 {}", 1, "\u2028<\\>", null),
+                new ParameterizedMessage("{}", new String(new char[5000]).replace('\0', 'x')),
+                new ParameterizedMessage("outer {}", nested), new StringFormattedMessage("%s=%d", "x", 3),
+                new SimpleMessage(""), new ObjectMessage(Arrays.asList(1, 2)) };
+        for (final Message message : messages) {
+            final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setMessage(message).build();
+            assertEquals(message.getFormattedMessage(),
+                    mapper.readTree(layout.toSerializable(event)).get("message").asText());
+        }
+    }
+
+    @Test
+    public void testContextKeys() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putValue("user", "u1");
+        contextData.putValue("request", "r\"1");
+        contextData.putValue("secret", "s");
+        contextData.putValue("trace", null);
+        final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setContextData(contextData).build();
+
+        JsonNode json = mapper.readTree(ExtendedJsonLayout.newBuilder().setProperties(true).build()
+                .toSerializable(event)).get("contextMap");
+        assertEquals(4, json.size());
+        assertEquals("r\"1", json.get("request").asText());
+        assertEquals("null", json.get("trace").asText());
+
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setIncludeContextKeys("user, request,secret")
+                .setExcludeContextKeys("secret")
+                .build().toSerializable(event)).get("contextMap");
+        // @formatter:on
+        assertEquals(2, json.size());
+        assertEquals("u1", json.get("user").asText());
+        assertEquals("r\"1", json.get("request").asText());
+
+        // @formatter:off
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setPropertiesAsList(true)
+                .setExcludeContextKeys("secret,trace")
+                .build().toSerializable(event)).get("contextMap");
+        // @formatter:on
+        assertEquals(2, json.size());
+        assertEquals("request", json.get(0).get("key").asText());
+        assertEquals("r\"1", json.get(0).get("value").asText());
+        assertEquals("user", json.get(1).get("key").asText());
+        assertEquals("u1", json.get(1).get("value").asText());
+    }
+
+    @Test
+    public void testFieldLimits() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putValue("short", "abc");
+        contextData.putValue("long", "0123456789");
+        // @formatter:off
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setMaxMessageLength(5)
+                .setMaxContextValueLength(4)
+                .build();
+        // @formatter:on
+        JsonNode json = mapper.readTree(layout.toSerializable(new Log4jLogEvent.Builder(newEvent(null))
+                .setMessage(new ParameterizedMessage("{}-{}", "abc", "\ud83d\ude00")).build()));
+        // the emoji's surrogate pair is not split
+        assertEquals("abc-", json.get("message").asText());
+        assertTrue(json.get("truncated").asBoolean());
+        assertEquals(0, json.get("contextMap").size());
+
+        json = mapper.readTree(layout.toSerializable(new Log4jLogEvent.Builder(newEvent(null))
+                .setMessage(new ObjectMessage("0123456789")).setContextData(contextData).build()));
+        assertEquals("01234", json.get("message").asText());
+        assertEquals("abc", json.get("contextMap").get("short").asText());
+        assertEquals("0123", json.get("contextMap").get("long").asText());
+
+        json = mapper.readTree(layout.toSerializable(new Log4jLogEvent.Builder(newEvent(null))
+                .setMessage(new SimpleMessage("short")).build()));
+        assertEquals("short", json.get("message").asText());
+        assertFalse(json.has("truncated"));
+
+        contextData.putValue("short", "abcdef");
+        json = mapper.readTree(ExtendedJsonLayout.newBuilder().setProperties(true).setPropertiesAsList(true)
+                .setMaxContextValueLength(4).build().toSerializable(new Log4jLogEvent.Builder(newEvent(null))
+                        .setContextData(contextData).build()));
+        assertEquals("abcd", json.get("contextMap").get(1).get("value").asText());
+        assertTrue(json.get("truncated").asBoolean());
+    }
+
+    @Test
+    public void testMaxEventBytes() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putValue("payload", new String(new char[100000]).replace('\0', 'p'));
+        final Log4jLogEvent huge = new Log4jLogEvent.Builder(newEvent(newException("boom")))
+                .setMessage(new SimpleMessage("m" + new String(new char[100000]).replace('\0', '\u0001')))
+                .setContextData(contextData).build();
+        final Log4jLogEvent small = newEvent(null);
+        for (final ExtendedJsonLayout.Format format : ExtendedJsonLayout.Format.values()) {
+            // @formatter:off
+            final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                    .setProperties(true)
+                    .setCompact(true)
+                    .setEventEol(true)
+                    .setFormat(format)
+                    .setMaxEventBytes(4096)
+                    .build();
+            // @formatter:on
+            final ObjectMapper reader = format == ExtendedJsonLayout.Format.SMILE ? new ObjectMapper(new SmileFactory())
+                    : format == ExtendedJsonLayout.Format.CBOR ? new ObjectMapper(new CBORFactory()) : mapper;
+
+            SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+            layout.encode(huge, destination);
+            byte[] bytes = destination.toByteArray();
+            assertTrue(bytes.length <= 4096);
+            final JsonNode json = reader.readTree(bytes);
+            assertTrue(json.get("truncated").asBoolean());
+            assertFalse(json.has("thrown"));
+            assertEquals(0, json.get("contextMap").size());
+            assertEquals(512, json.get("message").asText().length());
+            assertEquals(huge.getLoggerName(), json.get("loggerName").asText());
+            assertEquals(huge.getTimeMillis(), json.get("timeMillis").asLong());
+
+            destination = new SpyByteBufferDestination(1024, 64 * 1024);
+            layout.encode(small, destination);
+            bytes = destination.toByteArray();
+            assertFalse(reader.readTree(bytes).has("truncated"));
+            assertArrayEquals(layout.toByteArray(small), bytes);
+        }
+
+        final ExtendedJsonLayout tiny = ExtendedJsonLayout.newBuilder().setMaxEventBytes(50).build();
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        tiny.encode(small, destination);
+        tiny.encodeBatch(Arrays.<LogEvent>asList(small, small), destination);
+        assertEquals(0, destination.toByteArray().length);
+    }
+
+    @Test
+    public void testRepeatSuppression() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setRepeatSuppression(RepeatSuppression.newBuilder().setWindowMillis(1000).setLimit(2).build())
+                .build();
+        // @formatter:on
+        final List<LogEvent> events = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            events.add(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.WARN)
+                    .setMessage(new ParameterizedMessage("retry {}", i)).setTimeMillis(10000 + i).build());
+        }
+        // another pattern, another logger and another throwable are other fingerprints
+        events.add(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.WARN)
+                .setMessage(new SimpleMessage("other")).setTimeMillis(10005).build());
+        events.add(Log4jLogEvent.newBuilder().setLoggerName("a.C").setLevel(Level.WARN)
+                .setMessage(new ParameterizedMessage("retry {}", 5)).setTimeMillis(10005).build());
+        events.add(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.WARN)
+                .setMessage(new ParameterizedMessage("retry {}", 5)).setThrown(newException("boom"))
+                .setTimeMillis(10005).build());
+        SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        for (final LogEvent event : events) {
+            layout.encode(event, destination);
+        }
+        String[] lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(5, lines.length);
+        assertEquals("retry 0", mapper.readTree(lines[0]).get("message").asText());
+        assertEquals("retry 1", mapper.readTree(lines[1]).get("message").asText());
+        assertEquals("other", mapper.readTree(lines[2]).get("message").asText());
+        for (final String line : lines) {
+            assertFalse(line, mapper.readTree(line).has("repeatCount"));
+        }
+
+        // the first event after the window counts the ones left out, then the next window starts
+        final List<LogEvent> later = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            later.add(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.WARN)
+                    .setMessage(new ParameterizedMessage("retry {}", i)).setTimeMillis(11000 + i).build());
+        }
+        later.add(Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.WARN)
+                .setMessage(new ParameterizedMessage("retry {}", 4)).setTimeMillis(12000).build());
+        destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encodeBatch(later, destination);
+        lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(3, lines.length);
+        final JsonNode summary = mapper.readTree(lines[0]);
+        assertEquals("retry 0", summary.get("message").asText());
+        assertEquals(3, summary.get("repeatCount").asLong());
+        assertFalse(mapper.readTree(lines[1]).has("repeatCount"));
+        assertEquals(2, mapper.readTree(lines[2]).get("repeatCount").asLong());
+        assertEquals("retry 4", mapper.readTree(lines[2]).get("message").asText());
+    }
+
+    @Test
+    public void testRepeatSuppressionSummaries() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setRepeatSuppression(RepeatSuppression.newBuilder()
+                        .setWindowMillis(60000).setLimit(1).setMaxFingerprints(1).build())
+                .build();
+        // @formatter:on
+        final long now = System.currentTimeMillis();
+        // a fingerprint evicted by newer ones is summed up as it goes
+        SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encode(newRepeatedEvent("a.B", 0, now), destination);
+        layout.encode(newRepeatedEvent("a.B", 1, now), destination);
+        layout.encode(newRepeatedEvent("a.B", 2, now), destination);
+        for (int i = 0; i < 4; i++) {
+            layout.encode(newRepeatedEvent("a.C" + i, 0, now + 1), destination);
+        }
+        String[] lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(6, lines.length);
+        // ahead of the event that evicts it
+        JsonNode summary = mapper.readTree(lines[4]);
+        assertEquals("a.B", summary.get("loggerName").asText());
+        assertEquals("retry {}", summary.get("message").asText());
+        assertEquals(2, summary.get("repeatCount").asLong());
+        assertEquals("a.C3", mapper.readTree(lines[5]).get("loggerName").asText());
+
+        // windows still open are summed up when the layout stops
+        destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encode(newRepeatedEvent("a.C0", 1, now + 2), destination);
+        assertTrue(layout.stop(10, TimeUnit.SECONDS));
+        lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(1, lines.length);
+        summary = mapper.readTree(lines[0]);
+        assertEquals("a.C0", summary.get("loggerName").asText());
+        assertEquals(1, summary.get("repeatCount").asLong());
+    }
+
+    @Test
+    public void testRepeatSuppressionWindowEnd() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setRepeatSuppression(RepeatSuppression.newBuilder().setWindowMillis(100).setLimit(1).build())
+                .build();
+        // @formatter:on
+        // written to by the thread that ends the window
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024) {
+            @Override
+            public synchronized void writeBytes(final byte[] data, final int offset, final int length) {
+                super.writeBytes(data, offset, length);
+            }
+
+            @Override
+            public synchronized byte[] toByteArray() {
+                return super.toByteArray();
+            }
+        };
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 4; i++) {
+            layout.encode(newRepeatedEvent("a.B", i, now), destination);
+        }
+        String[] lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        for (int wait = 0; lines.length < 2 && wait < 100; wait++) {
+            Thread.sleep(50);
+            lines = new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        }
+        assertEquals(2, lines.length);
+        final JsonNode summary = new ObjectMapper().readTree(lines[1]);
+        assertEquals("retry {}", summary.get("message").asText());
+        assertEquals(3, summary.get("repeatCount").asLong());
+        assertEquals(now + 100, summary.get("timeMillis").asLong());
+
+        // stopping the layout sums the window up right away, and its end does not come again
+        final long later = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            layout.encode(newRepeatedEvent("a.B", i, later), destination);
+        }
+        assertTrue(layout.stop(10, TimeUnit.SECONDS));
+        assertEquals(4, new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n").length);
+        Thread.sleep(300);
+        assertEquals(4, new String(destination.toByteArray(), StandardCharsets.UTF_8).split("\n").length);
+    }
+
+    @Test
+    public void testRepeatSuppressionSkipsStoppedDestination() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setRepeatSuppression(RepeatSuppression.newBuilder().setWindowMillis(100).setLimit(1).build())
+                .build();
+        // @formatter:on
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OutputStreamManager manager = OutputStreamManager.getManager("ExtendedJsonLayoutTest-repeat", out,
+                new ManagerFactory<OutputStreamManager, OutputStream>() {
+                    @Override
+                    public OutputStreamManager createManager(final String name, final OutputStream data) {
+                        return new OutputStreamManager(data, name, null, false) {
+                            // the constructor is protected
+                        };
+                    }
+                });
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < 3; i++) {
+            layout.encode(newRepeatedEvent("a.B", i, now), manager);
+        }
+        manager.flush();
+        assertEquals(1, out.toString("UTF-8").split("\n").length);
+        // an appender of log4j's own stops without stopping the layout
+        manager.stop(0, TimeUnit.MILLISECONDS);
+        Thread.sleep(300);
+        assertEquals(1, out.toString("UTF-8").split("\n").length);
+    }
+
+    private static LogEvent newRepeatedEvent(final String loggerName, final int attempt, final long timeMillis) {
+        return Log4jLogEvent.newBuilder().setLoggerName(loggerName).setLevel(Level.WARN)
+                .setMessage(new ParameterizedMessage("retry {}", attempt)).setTimeMillis(timeMillis).build();
+    }
+
+    @Test
+    public void testAdditionalFields() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        System.setProperty("ExtendedJsonLayoutTest.region", "eu-1");
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setProperties(true)
+                .setAdditionalFields(new KeyValuePair[] {
+                        new KeyValuePair("app", "orders"),
+                        new KeyValuePair("region", "${sys:ExtendedJsonLayoutTest.region}"),
+                        new KeyValuePair("requestId", "${ctx:requestId}"),
+                        new KeyValuePair("user", "user-${ctx:user:-anonymous} in ${sys:ExtendedJsonLayoutTest.region}"),
+                        new KeyValuePair("year", "${date:yyyy}"),
+                        new KeyValuePair("time", "${date:HH:mm:ss.SSS}"),
+                        new KeyValuePair("nested", "${ctx:${sys:ExtendedJsonLayoutTest.key:-requestId}}") })
+                .build();
+        // @formatter:on
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putValue("requestId", "r-42");
+        final Log4jLogEvent event = new Log4jLogEvent.Builder(newEvent(null)).setContextData(contextData)
+                .setTimeMillis(0).build();
+        JsonNode json = mapper.readTree(layout.toSerializable(event));
+        assertEquals("orders", json.get("app").asText());
+        assertEquals("eu-1", json.get("region").asText());
+        assertEquals("r-42", json.get("requestId").asText());
+        assertEquals("user-anonymous in eu-1", json.get("user").asText());
+        assertEquals(formatted("yyyy", TimeZone.getDefault().getID(), 0), json.get("year").asText());
+        assertEquals("r-42", json.get("nested").asText());
+
+        contextData.putValue("user", "bob");
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encode(new Log4jLogEvent.Builder(event).setContextData(contextData).build(), destination);
+        json = mapper.readTree(destination.toByteArray());
+        assertEquals("user-bob in eu-1", json.get("user").asText());
+        assertEquals("orders", json.get("app").asText());
+
+        // lookups left in a value are resolved for each event
+        System.clearProperty("ExtendedJsonLayoutTest.region");
+        json = mapper.readTree(layout.toSerializable(event));
+        assertEquals("${sys:ExtendedJsonLayoutTest.region}", json.get("region").asText());
+
+        // the same second, then the next one
+        for (final long time : new long[] { 123, 999, 1001 }) {
+            json = mapper.readTree(layout.toSerializable(new Log4jLogEvent.Builder(event).setTimeMillis(time).build()));
+            assertEquals(formatted("HH:mm:ss.SSS", TimeZone.getDefault().getID(), time), json.get("time").asText());
+        }
+
+        final ExtendedJsonLayout smile = ExtendedJsonLayout.newBuilder()
+                .setFormat(ExtendedJsonLayout.Format.SMILE)
+                .setAdditionalFields(new KeyValuePair[] { new KeyValuePair("app", "orders") })
+                .build();
+        json = new ObjectMapper(new SmileFactory()).readTree(smile.toByteArray(event));
+        assertEquals("orders", json.get("app").asText());
+    }
+
+    @Test
+    public void testHostnameIsResolvedOnce() throws Exception {
+        final ExtendedJsonAdapter first = new ExtendedJsonAdapter();
+        // the resolution may swap the name in at any time, so look for a pass it did not happen in
+        for (int attempt = 0; attempt < 10; attempt++) {
+            final String name = HostName.get();
+            final Map<String, Object> fields = first.getMixedFields();
+            final Object other = new ExtendedJsonAdapter().getMixedFields().get("hostname");
+            final Map<String, Object> again = first.getMixedFields();
+            if (name != HostName.get()) {
+                continue;
+            }
+            assertTrue(fields.get("hostname").toString().length() > 0);
+            // the map is kept until the name changes, and the name is shared by the adapters of later layouts
+            assertSame(fields, again);
+            assertSame(fields.get("hostname"), other);
+            return;
+        }
+        fail("the host name kept changing");
+    }
+
+    private static String formatted(final String pattern, final String timeZone, final long time) {
+        final SimpleDateFormat format = new SimpleDateFormat(pattern);
+        format.setTimeZone(TimeZone.getTimeZone(timeZone));
+        return format.format(new Date(time));
+    }
+
+    @Test
+    public void testEncodeCompleteWritesSeparator() throws Exception {
+        // @formatter:off
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encode(LogEventFixtures.createLogEvent(), destination);
+        layout.encode(LogEventFixtures.createLogEvent(), destination);
+        final String str = destination.toUtf8String();
+        assertTrue(str, str.startsWith("{"));
+        assertEquals(str, str.indexOf(", {"), str.lastIndexOf(", {"));
+        assertTrue(str, str.indexOf(", {") > 0);
+    }
+
+    @Test
+    public void testCompleteFromConcurrentThreads() throws Exception {
+        // the batches of a charset other than UTF-8 are serialized as text first
+        for (final Charset charset : new Charset[] { StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1 }) {
+            assertCompleteFromConcurrentThreads(charset);
+        }
+    }
+
+    @Test
+    public void testToSerializableDecidesSeparatorWhenCalled() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        final String first = layout.toSerializable(newEvent(null));
+        final String second = layout.toSerializable(newEvent(null));
+        assertFalse(first.startsWith(","));
+        assertTrue(second.startsWith(", "));
+        // valid only when written in the order they were serialized
+        assertEquals(2, new ObjectMapper().readTree("[" + first + second + "]").size());
+
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024);
+        layout.encode(newEvent(null), destination);
+        layout.encodeBatch(Arrays.<LogEvent>asList(newEvent(null), newEvent(null)), destination);
+        assertTrue(destination.toUtf8String().startsWith(", "));
+        assertEquals(5, layout.eventCount);
+    }
+
+    private static void assertCompleteFromConcurrentThreads(final Charset charset) throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCharset(charset)
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .build();
+        // @formatter:on
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 4 * 1024 * 1024) {
+            // like OutputStreamManager
+            @Override
+            public synchronized void writeBytes(final byte[] data, final int offset, final int length) {
+                super.writeBytes(data, offset, length);
+            }
+        };
+        final int threads = 8;
+        final int count = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < count; i += 2) {
+                        if (i % 10 == 0) {
+                            layout.encodeBatch(Arrays.<LogEvent>asList(newEvent(null), newEvent(null)), destination);
+                        } else {
+                            layout.encode(newEvent(null), destination);
+                            layout.encode(newEvent(null), destination);
+                        }
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+        start.countDown();
+        for (final Thread producer : producers) {
+            producer.join();
+        }
+        final JsonNode events = new ObjectMapper().readTree("[" + destination.toUtf8String() + "]");
+        assertEquals(threads * count, events.size());
+    }
+
+    @Test
+    public void testReusableEventsSerializeLikeLog4jLogEvent() throws Exception {
+        final Log4jLogEvent expected = LogEventFixtures.createLogEvent();
+        final MutableLogEvent mutable = new MutableLogEvent();
+        mutable.initFrom(expected);
+        // RingBufferLogEvent builds its ThrowableProxy from the current call stack, so compare without a throwable
+        final Log4jLogEvent expectedNoThrown = new Log4jLogEvent.Builder(expected).setThrown(null).setThrownProxy(null)
+                .build();
+        final StringMap contextData = ContextDataFactory.createContextData();
+        contextData.putAll(expected.getContextData());
+        final RingBufferLogEvent ringBuffer = new RingBufferLogEvent();
+        ringBuffer.setValues(null, expected.getLoggerName(), expected.getMarker(), expected.getLoggerFqcn(),
+                expected.getLevel(), expected.getMessage(), null, contextData, expected.getContextStack(),
+                expected.getThreadId(), expected.getThreadName(), expected.getThreadPriority(), expected.getSource(),
+                expected.getTimeMillis(), expected.getNanoTime());
+        for (final boolean propertiesAsList : new boolean[] { true, false }) {
+            // MutableLogEvent.initFrom does not copy the source, so leave location out
+            // @formatter:off
+            final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                    .setLocationInfo(false)
+                    .setProperties(true)
+                    .setPropertiesAsList(propertiesAsList)
+                    .setCompact(true)
+                    .setIncludeStacktrace(true)
+                    .build();
+            // @formatter:on
+            assertEquals(layout.toSerializable(expected), layout.toSerializable(mutable));
+            assertEquals(layout.toSerializable(expectedNoThrown), layout.toSerializable(ringBuffer));
+        }
+    }
+
+    public static class MapAdapter implements ExtendedJson {
+
+        static volatile Map<String, Object> fields;
+
+        @Override
+        public Map<String, Object> getMixedFields() {
+            return fields;
+        }
+    }
+
+    public static class StaticMapAdapter extends MapAdapter implements StaticExtendedJson {
+    }
+
+    @Test
+    public void testStaticFieldsSerializeLikeMixedFields() throws Exception {
+        final Log4jLogEvent expected = LogEventFixtures.createLogEvent();
+        final Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("hostname", "host\"1\"");
+        fields.put("region", "eu-west\n1");
+        fields.put("pid", 42);
+        fields.put("missing", null);
+        MapAdapter.fields = fields;
+        for (final boolean compact : new boolean[] { true, false }) {
+            // @formatter:off
+            final AbstractJacksonLayout mixed = ExtendedJsonLayout.newBuilder()
+                    .setCompact(compact)
+                    .setJsonAdapter(MapAdapter.class.getName())
+                    .build();
+            final AbstractJacksonLayout pre = ExtendedJsonLayout.newBuilder()
+                    .setCompact(compact)
+                    .setJsonAdapter(StaticMapAdapter.class.getName())
+                    .build();
+            // @formatter:on
+            assertEquals(mixed.toSerializable(expected), pre.toSerializable(expected));
+
+            final Map<String, Object> updated = new LinkedHashMap<>(fields);
+            updated.put("region", "us-east-1");
+            MapAdapter.fields = updated;
+            final String str = pre.toSerializable(expected);
+            assertEquals(mixed.toSerializable(expected), str);
+            assertTrue(str, str.contains("us-east-1"));
+            MapAdapter.fields = fields;
+        }
+    }
+
+    public static class EventFieldsAdapter implements EventExtendedJson {
+
+        private ExtendedJsonField logger;
+        private ExtendedJsonField time;
+        private ExtendedJsonField thrown;
+        private ExtendedJsonField missing;
+
+        @Override
+        public void registerFields(ExtendedJsonFields fields) {
+            logger = fields.register("logger");
+            time = fields.register("time");
+            thrown = fields.register("hasThrown");
+            missing = fields.register("missing");
+        }
+
+        @Override
+        public void writeFields(LogEvent event, ExtendedJsonFieldWriter writer) throws IOException {
+            writer.writeString(logger, event.getLoggerName());
+            writer.writeLong(time, event.getTimeMillis());
+            writer.writeBoolean(thrown, event.getThrown() != null);
+            writer.writeString(missing, null);
+        }
+    }
+
+    @Test
+    public void testEventFields() throws Exception {
+        final Log4jLogEvent expected = LogEventFixtures.createLogEvent();
+        // @formatter:off
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setJsonAdapter(EventFieldsAdapter.class.getName())
+                .build();
+        // @formatter:on
+        final String str = layout.toSerializable(expected);
+        assertTrue(str, str.endsWith(",\"logger\":\"" + expected.getLoggerName() + "\",\"time\":"
+                + expected.getTimeMillis() + ",\"hasThrown\":true}"));
+        assertFalse(str, str.contains("missing"));
+    }
+
+    @Test
+    public void testLargeEventBuffersAreNotRetained() throws Exception {
+        final char[] chars = new char[20 * 1024];
+        Arrays.fill(chars, 'x');
+        final String large = new String(chars);
+        // @formatter:off
+        final AbstractJacksonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setMaxRetainedBufferSize(8 * 1024)
+                .build();
+        // @formatter:on
+        final Log4jLogEvent small = Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.INFO)
+                .setMessage(new SimpleMessage("small")).build();
+        final Log4jLogEvent big = Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(large)).build();
+
+        final String smallJson = layout.toSerializable(small);
+        final String bigJson = layout.toSerializable(big);
+        assertTrue(bigJson.contains(large));
+        assertEquals(smallJson, layout.toSerializable(small));
+        assertTrue(ExtendedJsonLayout.stringWriters.get().capacity() <= 8 * 1024);
+
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(64 * 1024, 64 * 1024);
+        layout.encode(big, destination);
+        assertEquals(bigJson, destination.toUtf8String());
+        assertTrue(ExtendedJsonLayout.outputStreams.get().capacity() <= 8 * 1024);
+
+        // a limit that is not positive falls back to the default
+        for (final int maxRetainedBufferSize : new int[] { 0, -1 }) {
+            // @formatter:off
+            final AbstractJacksonLayout fallback = ExtendedJsonLayout.newBuilder()
+                    .setCompact(true)
+                    .setMaxRetainedBufferSize(maxRetainedBufferSize)
+                    .build();
+            // @formatter:on
+            assertEquals(bigJson, fallback.toSerializable(big));
+            final SpyByteBufferDestination fallbackDestination = new SpyByteBufferDestination(64 * 1024, 64 * 1024);
+            fallback.encode(small, fallbackDestination);
+            assertEquals(smallJson, fallbackDestination.toUtf8String());
+        }
+    }
+
+    private static Exception newException(final String message) {
+        final Exception exception = new IOException(message, new NullPointerException("cause"));
+        exception.addSuppressed(new IllegalStateException("suppressed"));
+        return exception;
+    }
+
+    private static Log4jLogEvent newEvent(final Throwable thrown) {
+        return Log4jLogEvent.newBuilder().setLoggerName("a.B").setLevel(Level.ERROR)
+                .setMessage(new SimpleMessage("failed")).setThrown(thrown).build();
+    }
+
+    @Test
+    public void testThrownCache() throws Exception {
+        for (final boolean compact : new boolean[] { true, false }) {
+            for (final boolean stacktraceAsString : new boolean[] { true, false }) {
+                // @formatter:off
+                final AbstractJacksonLayout uncached = ExtendedJsonLayout.newBuilder()
+                        .setCompact(compact)
+                        .setStacktraceAsString(stacktraceAsString)
+                        .build();
+                final ExtendedJsonLayout cached = ExtendedJsonLayout.newBuilder()
+                        .setCompact(compact)
+                        .setStacktraceAsString(stacktraceAsString)
+                        .setThrownCacheSize(2)
+                        .build();
+                // @formatter:on
+                final ThrownCache cache = cached.getThrownCache();
+                final Log4jLogEvent[] events = new Log4jLogEvent[3];
+                for (int i = 0; i < events.length; i++) {
+                    events[i] = newEvent(newException("boom"));
+                }
+                for (final Log4jLogEvent event : events) {
+                    assertEquals(uncached.toSerializable(event), cached.toSerializable(event));
+                }
+                assertEquals(1, cache.getMissCount());
+                assertEquals(2, cache.getHitCount());
+
+                final Log4jLogEvent other = newEvent(newException("bang"));
+                assertEquals(uncached.toSerializable(other), cached.toSerializable(other));
+                assertEquals(2, cache.getMissCount());
+                assertEquals(2, cache.size());
+                assertEquals(0.5, cache.getHitRate(), 0.0001);
+
+                final Log4jLogEvent noThrown = newEvent(null);
+                assertEquals(uncached.toSerializable(noThrown), cached.toSerializable(noThrown));
+                assertEquals(4, cache.getHitCount() + cache.getMissCount());
+            }
+        }
+        assertNull(ExtendedJsonLayout.newBuilder().build().getThrownCache());
+    }
+
+    @Test
+    public void testThrownCacheEvictsLeastRecentlyUsed() throws Exception {
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder().setThrownCacheSize(4).build();
+        final ThrownCache cache = layout.getThrownCache();
+        final Log4jLogEvent[] events = new Log4jLogEvent[5];
+        for (int i = 0; i < events.length; i++) {
+            events[i] = newEvent(newException("boom " + i));
+        }
+        for (int i = 0; i < 4; i++) {
+            layout.toSerializable(events[i]);
+        }
+        // a hit records its use only once the last one is older than the cache's resolution
+        Thread.sleep(50);
+        layout.toSerializable(events[0]);
+        assertEquals(1, cache.getHitCount());
+        layout.toSerializable(events[4]);
+        assertEquals(4, cache.size());
+        layout.toSerializable(events[0]);
+        assertEquals(2, cache.getHitCount());
+    }
+
+    @Test
+    public void testStacktraceTrimmingWritesLog4jShape() throws Exception {
+        for (final boolean compact : new boolean[] { true, false }) {
+            for (final boolean stacktraceAsString : new boolean[] { true, false }) {
+                // @formatter:off
+                final AbstractJacksonLayout untrimmed = ExtendedJsonLayout.newBuilder()
+                        .setCompact(compact)
+                        .setStacktraceAsString(stacktraceAsString)
+                        .build();
+                final AbstractJacksonLayout trimmed = ExtendedJsonLayout.newBuilder()
+                        .setCompact(compact)
+                        .setStacktraceAsString(stacktraceAsString)
+                        .setStacktraceMaxFrames(Integer.MAX_VALUE)
+                        .setThrownCacheSize(1)
+                        .build();
+                // @formatter:on
+                final Exception exception = new IllegalArgumentException("outer", newException("boom"));
+                exception.addSuppressed(new IllegalStateException((String) null));
+                final Log4jLogEvent event = newEvent(exception);
+                // except that a throwable without a message does not get a ": null" header line
+                final String expected = untrimmed.toSerializable(event).replace("IllegalStateException: null\\n",
+                        "IllegalStateException\\n");
+                assertEquals(expected, trimmed.toSerializable(event));
+                assertEquals(expected, trimmed.toSerializable(event));
+            }
+        }
+    }
+
+    @Test
+    public void testStacktraceTrimming() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Exception exception = new IllegalArgumentException("outer", newException("boom"));
+        final Log4jLogEvent event = newEvent(exception);
+        final int frames = exception.getStackTrace().length;
+
+        // @formatter:off
+        JsonNode thrown = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setStacktraceAsString(false)
+                .setStacktraceMaxFrames(1)
+                .setStacktraceMaxCauses(1)
+                .build().toSerializable(event)).get("thrown");
+        // @formatter:on
+        assertEquals(2, thrown.get("extendedStackTrace").size());
+        assertEquals("testStacktraceTrimming", thrown.get("extendedStackTrace").get(0).get("method").asText());
+        assertEquals(frames - 1, thrown.get("extendedStackTrace").get(1).get("omitted").asInt());
+        assertEquals("boom", thrown.get("cause").get("message").asText());
+        assertNull(thrown.get("cause").get("cause"));
+        assertEquals(1, thrown.get("cause").get("omittedCauses").asInt());
+
+        // @formatter:off
+        thrown = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setStacktraceAsString(false)
+                .setStacktraceExcludePackages("org.junit., sun.reflect.")
+                .build().toSerializable(event)).get("thrown");
+        // @formatter:on
+        int omitted = 0;
+        for (final JsonNode frame : thrown.get("extendedStackTrace")) {
+            if (frame.has("omitted")) {
+                omitted += frame.get("omitted").asInt();
+            } else {
+                assertFalse(frame.get("class").asText().startsWith("org.junit."));
+            }
+        }
+        assertTrue(omitted > 0);
+        assertEquals(frames, omitted + thrown.get("extendedStackTrace").size() - countOmittedRuns(thrown));
+
+        // @formatter:off
+        thrown = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setStacktraceAsString(false)
+                .setStacktraceIncludePackages(getClass().getPackage().getName())
+                .build().toSerializable(event)).get("thrown");
+        // @formatter:on
+        assertEquals(getClass().getName(), thrown.get("extendedStackTrace").get(0).get("class").asText());
+        assertEquals(frames - 1, thrown.get("extendedStackTrace").get(1).get("omitted").asInt());
+
+        // @formatter:off
+        final String trace = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                .setStacktraceMaxFrames(1)
+                .setStacktraceMaxCauses(1)
+                .build().toSerializable(event)).get("thrown").get("extendedStackTrace").asText();
+        // @formatter:on
+        assertTrue(trace, trace.startsWith("java.lang.IllegalArgumentException: outer\n\tat "
+                + getClass().getName() + ".testStacktraceTrimming("));
+        assertTrue(trace, trace.contains("\n\t... " + (frames - 1) + " frames omitted\n"));
+        assertTrue(trace, trace.contains("Caused by: java.io.IOException: boom\n"));
+        assertTrue(trace, trace.contains("\t... 1 causes omitted\n"));
+        assertFalse(trace, trace.contains("Caused by: java.lang.NullPointerException"));
+    }
+
+    @Test
+    public void testStacktraceFoldCommonFrames() throws Exception {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Log4jLogEvent event = newEvent(newException("boom"));
+        for (final boolean stacktraceAsString : new boolean[] { true, false }) {
+            // @formatter:off
+            final JsonNode suppressed = mapper.readTree(ExtendedJsonLayout.newBuilder()
+                    .setStacktraceAsString(stacktraceAsString)
+                    .setStacktraceFoldCommonFrames(true)
+                    .build().toSerializable(event)).get("thrown").get("suppressed").get(0);
+            // @formatter:on
+            final int frames = event.getThrown().getStackTrace().length;
+            assertEquals(frames - 1, suppressed.get("commonElementCount").asInt());
+            if (stacktraceAsString) {
+                final String trace = suppressed.get("extendedStackTrace").asText();
+                assertEquals(trace, 2, trace.split("\n").length);
+            } else {
+                assertEquals(1, suppressed.get("extendedStackTrace").size());
+            }
+        }
+    }
+
+    private static int countOmittedRuns(final JsonNode thrown) {
+        int runs = 0;
+        for (final JsonNode frame : thrown.get("extendedStackTrace")) {
+            if (frame.has("omitted")) {
+                runs++;
+            }
+        }
+        return runs;
+    }
+
+    @Test
+    public void testAsyncEncoderKeepsOrder() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .setComplete(true)
+                .setCompact(true)
+                .setEventEol(true)
+                .setEncoderThreads(4)
+                .setEncoderQueueSize(16)
+                .build();
+        // @formatter:on
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 1024 * 1024);
+        final MutableLogEvent event = new MutableLogEvent();
+        final int count = 500;
+        for (int i = 0; i < count; i++) {
+            // the layout must capture the reused event before handing it to the encoder threads
+            event.initFrom(newEvent(i % 10 == 0 ? newException("boom " + i) : null));
+            event.setMessage(new SimpleMessage("message " + i));
+            layout.encode(event, destination);
+        }
+        assertTrue(layout.getAsyncEncoder().awaitWritten(10000));
+        assertEquals(0, layout.getAsyncEncoder().getDroppedCount());
+
+        // stopping lets the encoder threads go, and a later event starts them again
+        assertTrue(layout.stop(10, TimeUnit.SECONDS));
+        assertFalse(layout.getAsyncEncoder().isRunning());
+        event.initFrom(newEvent(newException("boom " + count)));
+        event.setMessage(new SimpleMessage("message " + count));
+        layout.encode(event, destination);
+        assertTrue(layout.getAsyncEncoder().awaitWritten(10000));
+        assertTrue(layout.getAsyncEncoder().isRunning());
+
+        final JsonNode events = new ObjectMapper().readTree("[" + destination.toUtf8String() + "]");
+        assertEquals(count + 1, events.size());
+        for (int i = 0; i <= count; i++) {
+            assertEquals("message " + i, events.get(i).get("message").asText());
+            assertEquals(i % 10 == 0, events.get(i).has("thrown"));
+        }
+    }
+
+    @Test
+    public void testAsyncEncoderFooterUnderDestinationLock() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setConfiguration(new DefaultConfiguration())
+                .setCompact(true)
+                .setEventEol(true)
+                .setEncoderThreads(2)
+                .build();
+        // @formatter:on
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 1024 * 1024) {
+            // like OutputStreamManager
+            @Override
+            public synchronized void writeBytes(final byte[] data, final int offset, final int length) {
+                super.writeBytes(data, offset, length);
+            }
+
+            @Override
+            public synchronized String toUtf8String() {
+                return super.toUtf8String();
+            }
+        };
+        final int count = 100;
+        synchronized (destination) {
+            for (int i = 0; i < count; i++) {
+                layout.encode(newEvent(null), destination);
+            }
+            // as a rolling file manager asks for the footer: the encoder threads cannot write, and are not waited for
+            final long start = System.nanoTime();
+            assertNull(layout.getFooter());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        }
+        assertTrue(layout.stop(10, TimeUnit.SECONDS));
+        assertEquals(count, destination.toUtf8String().split("\n").length);
+    }
+
+    @Test
+    public void testAsyncEncoderDropsWhenFull() throws Exception {
+        // @formatter:off
+        final ExtendedJsonLayout layout = ExtendedJsonLayout.newBuilder()
+                .setCompact(true)
+                .setEventEol(true)
+                .setEncoderThreads(1)
+                .setEncoderQueueSize(1)
+                .setEncoderQueueFullPolicy(AsyncEncoder.QueueFullPolicy.DROP)
+                .build();
+        // @formatter:on
+        final CountDownLatch release = new CountDownLatch(1);
+        final SpyByteBufferDestination destination = new SpyByteBufferDestination(1024, 64 * 1024) {
+            @Override
+            public void writeBytes(final byte[] data, final int offset, final int length) {
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.writeBytes(data, offset, length);
+            }
+        };
+        for (int i = 0; i < 5; i++) {
+            layout.encode(newEvent(null), destination);
+        }
+        assertEquals(4, layout.getAsyncEncoder().getDroppedCount());
+        release.countDown();
+        assertTrue(layout.getAsyncEncoder().awaitWritten(10000));
+        assertEquals(1, destination.toUtf8String().split("\n").length);
+    }
+
     @Test
     public void testLocationOffCompactOffMdcOff() throws Exception {
         this.testAllFeatures(false, false, false, false, false, true, true, ExtendedJsonAdapter.class.getName());